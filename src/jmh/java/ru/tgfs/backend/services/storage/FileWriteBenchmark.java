@@ -0,0 +1,108 @@
+package ru.tgfs.backend.services.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.tgfs.backend.configurations.TelegramConfig;
+
+/**
+ * Writes into the local copy of an open file, which is what {@link TelegramStorageService#updateFile} does under
+ * the path lock. Uploads of sealed blocks complete immediately, so only the bookkeeping around them is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileWriteBenchmark {
+    private static final int RANDOM_OFFSETS = 4096;
+
+    public enum Pattern {
+        SEQUENTIAL,
+        RANDOM
+    }
+
+    @Param({"1048576", "67108864", "1073741824"})
+    private long fileSize;
+
+    @Param({"4096", "131072"})
+    private int writeSize;
+
+    @Param
+    private Pattern pattern;
+
+    private CachedFile file;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private long[] offsets;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        long blockSize = new TelegramConfig.Transfer().getChunkSize().toBytes();
+        Path directory = Path.of(System.getProperty("java.io.tmpdir"));
+        file = CachedFile.create(directory, blockSize, new CachedFile.Uploader() {
+            @Override
+            public CompletableFuture<Long> upload(FileChannel contents, int block) {
+                return CompletableFuture.completedFuture((long) block);
+            }
+
+            @Override
+            public void discard(CompletableFuture<Long> upload) {
+            }
+        });
+        file.write(ByteBuffer.allocate(1), fileSize - 1);
+
+        bytes = new byte[writeSize];
+        new Random(1).nextBytes(bytes);
+        buffer = ByteBuffer.wrap(bytes);
+
+        long writes = fileSize / writeSize;
+        Random random = new Random(2);
+        offsets = new long[pattern == Pattern.SEQUENTIAL ? (int) writes : RANDOM_OFFSETS];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (pattern == Pattern.SEQUENTIAL ? i : random.nextLong(writes)) * writeSize;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.close();
+    }
+
+    @Benchmark
+    public void writeBuffer() throws IOException {
+        buffer.clear();
+        file.write(buffer, nextOffset());
+    }
+
+    @Benchmark
+    public long writeChannel() throws IOException {
+        return file.write(Channels.newChannel(new ByteArrayInputStream(bytes)), nextOffset(), writeSize);
+    }
+
+    private long nextOffset() {
+        long offset = offsets[next];
+        next = next + 1 == offsets.length ? 0 : next + 1;
+        return offset;
+    }
+}
@@ -0,0 +1,78 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a directory of files with Jackson, both as a single tree in the original pinned-message format
+ * and as the shard messages it is stored in now.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class TreeSerializationBenchmark {
+    private static final int ENTRIES_PER_SHARD = 32;
+    private static final int MAX_BUCKETS = 1 << 12;
+
+    @Param({"1000", "100000", "1000000"})
+    private int entries;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private FileSystemTree tree;
+    private BitSet allBuckets;
+    private String json;
+    private Map<Integer, String> shards;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        tree = Trees.flat(entries);
+        int bucketCount = Math.min(MAX_BUCKETS, Math.max(1, entries / ENTRIES_PER_SHARD));
+        tree.setShards(FileSystemTree.ROOT, new long[bucketCount]);
+        allBuckets = new BitSet(bucketCount);
+        allBuckets.set(0, bucketCount);
+
+        json = objectMapper.writeValueAsString(tree);
+        shards = ShardCodec.writeBuckets(tree, FileSystemTree.ROOT, allBuckets);
+    }
+
+    @Benchmark
+    public String serializeTree() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(tree);
+    }
+
+    @Benchmark
+    public FileSystemTree deserializeTree() throws JsonProcessingException {
+        return objectMapper.readValue(json, FileSystemTree.class);
+    }
+
+    @Benchmark
+    public Map<Integer, String> writeShards() {
+        return ShardCodec.writeBuckets(tree, FileSystemTree.ROOT, allBuckets);
+    }
+
+    @Benchmark
+    public FileSystemTree readShards() {
+        FileSystemTree loaded = new FileSystemTree();
+        for (String text : shards.values()) {
+            ShardCodec.readBucket(loaded, FileSystemTree.ROOT, text);
+        }
+        return loaded;
+    }
+}
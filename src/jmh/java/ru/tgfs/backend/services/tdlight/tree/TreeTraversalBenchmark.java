@@ -0,0 +1,59 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Path resolution and message id collection, which every filesystem call and every recursive delete or copy
+ * goes through, on a chain of nested directories.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeTraversalBenchmark {
+    @Param({"4", "32", "256"})
+    private int depth;
+
+    @Param({"16", "1024"})
+    private int width;
+
+    private FileSystemTree tree;
+    private String existingPath;
+    private String missingPath;
+
+    @Setup
+    public void setUp() {
+        tree = Trees.deep(depth, width);
+        existingPath = Trees.deepestFile(depth, width);
+        missingPath = existingPath + ".missing";
+    }
+
+    @Benchmark
+    public int lookupExisting() {
+        return tree.lookup(existingPath);
+    }
+
+    @Benchmark
+    public int lookupMissing() {
+        return tree.lookup(missingPath);
+    }
+
+    @Benchmark
+    public void collectMessageIds(Blackhole blackhole) {
+        tree.collectMessageIds(FileSystemTree.ROOT, blackhole::consume);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+/**
+ * Filesystem trees of a known shape for the benchmarks.
+ */
+final class Trees {
+    private static final int MODIFICATION_TIME = 1_700_000_000;
+
+    private Trees() {
+    }
+
+    /**
+     * A single directory holding {@code entries} files of one to three chunks each.
+     */
+    static FileSystemTree flat(int entries) {
+        FileSystemTree tree = new FileSystemTree();
+        for (int i = 0; i < entries; i++) {
+            tree.link(FileSystemTree.ROOT, fileName(i), createFile(tree, i));
+        }
+        return tree;
+    }
+
+    /**
+     * A chain of {@code depth} nested directories, each also holding {@code width} files.
+     */
+    static FileSystemTree deep(int depth, int width) {
+        FileSystemTree tree = new FileSystemTree();
+        int directoryId = FileSystemTree.ROOT;
+        int next = 0;
+        for (int level = 0; level < depth; level++) {
+            for (int i = 0; i < width; i++) {
+                tree.link(directoryId, fileName(i), createFile(tree, next++));
+            }
+            int childId = tree.createDirectory();
+            tree.link(directoryId, directoryName(level), childId);
+            directoryId = childId;
+        }
+        return tree;
+    }
+
+    /**
+     * @return path of the last file in the innermost directory of a {@link #deep} tree
+     */
+    static String deepestFile(int depth, int width) {
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            path.append('/').append(directoryName(level));
+        }
+        return path.append('/').append(fileName(width - 1)).toString();
+    }
+
+    static String fileName(int index) {
+        return "file-" + index + ".bin";
+    }
+
+    private static String directoryName(int level) {
+        return "directory-" + level;
+    }
+
+    private static int createFile(FileSystemTree tree, int index) {
+        long[] chunks = new long[1 + index % 3];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ((long) index * 3 + i + 1) << 20;
+        }
+        return tree.createFile(chunks, chunks.length * (64L << 20), MODIFICATION_TIME);
+    }
+}
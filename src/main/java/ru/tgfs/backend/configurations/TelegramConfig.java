@@ -1,6 +1,13 @@
 package ru.tgfs.backend.configurations;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import lombok.Data;
+import org.springframework.util.unit.DataSize;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
@@ -11,6 +18,19 @@ public @Data class TelegramConfig {
     private Bot bot;
     private Long adminId;
     private String phoneNumber;
+    /**
+     * Additional accounts file chunks are spread across; the account of {@code phoneNumber} keeps the metadata.
+     * Once chunks are stored on an account, it must stay at the same position in this list.
+     */
+    private List<Account> accounts = new ArrayList<>();
+    /**
+     * Longest wait for the answer to a TDLib request that does not transfer file contents.
+     */
+    private Duration callTimeout = Duration.ofMinutes(1);
+    private Metadata metadata = new Metadata();
+    private Transfer transfer = new Transfer();
+    private Scheduler scheduler = new Scheduler();
+    private Outbox outbox = new Outbox();
 
     public static @Data class App {
         private Integer apiId;
@@ -20,4 +40,126 @@ public @Data class TelegramConfig {
     public static @Data class Bot {
         private String token;
     }
+
+    public static @Data class Account {
+        private String phoneNumber;
+        /**
+         * TDLib database of the account; every account needs its own.
+         */
+        private Path sessionPath;
+        /**
+         * Chat the chunks are stored in, the Saved Messages of the account when not set.
+         */
+        private Long chatId;
+    }
+
+    public static @Data class Metadata {
+        /**
+         * Collect mutations in a local journal and write the pinned message in batches.
+         */
+        private boolean writeBehind = true;
+        private Duration flushInterval = Duration.ofSeconds(5);
+        /**
+         * Number of pending mutations that triggers a flush before the interval elapses.
+         */
+        private int flushThreshold = 500;
+        private Path journalPath = Path.of("tdlib-session-user-admin", "metadata.journal");
+        /**
+         * Longest shard message text; a directory bucket that outgrows it is split in two.
+         */
+        private int shardSizeLimit = 4000;
+        /**
+         * Content hashes and reference counts of stored chunks.
+         */
+        private Path chunkIndexPath = Path.of("tdlib-session-user-admin", "chunks.index");
+    }
+
+    public static @Data class Transfer {
+        /**
+         * Size of the chunks larger files are split into. Only used when a new filesystem is created;
+         * an existing one keeps the chunk size recorded in its manifest.
+         */
+        private DataSize chunkSize = DataSize.ofMegabytes(64);
+        /**
+         * Number of chunks uploaded or downloaded in parallel per storage account.
+         */
+        private int workers = 4;
+        private Path assembledDirectory = Path.of("tdlib-session-user-admin", "assembled");
+        /**
+         * Disk space for downloaded chunks and assembled files; least recently used ones are removed beyond it.
+         */
+        private DataSize downloadCacheSize = DataSize.ofGigabytes(8);
+        /**
+         * Bounds of the read-ahead window for sequential reads.
+         */
+        private DataSize readAheadMin = DataSize.ofMegabytes(1);
+        private DataSize readAheadMax = DataSize.ofMegabytes(64);
+        /**
+         * How far ahead of a sequential reader data is prefetched, at the rate the reader consumes it.
+         */
+        private Duration readAheadHorizon = Duration.ofSeconds(2);
+        /**
+         * Longest wait for the upload or download of a single chunk.
+         */
+        private Duration timeout = Duration.ofMinutes(10);
+        /**
+         * Store chunks with identical contents once, shared between files through reference counts.
+         */
+        private boolean deduplicate = true;
+        /**
+         * Upload the blocks a sequential writer has moved past while the file is still open, so that closing it
+         * only waits for the last ones.
+         */
+        private boolean uploadWhileWriting = true;
+    }
+
+    public static @Data class Scheduler {
+        /**
+         * Requests per second allowed for each TDLib request type, keyed by the request class name.
+         */
+        private Map<String, Double> rates = new HashMap<>();
+        private double defaultRate = 30;
+        /**
+         * Number of requests of one type that may be sent at once after a quiet period.
+         */
+        private int burst = 20;
+        /**
+         * How many times a request is repeated after Telegram answers it with a flood wait.
+         */
+        private int floodWaitRetries = 3;
+        /**
+         * Number of requests of one account waiting for their answer at once, across all request types.
+         */
+        private int maxInFlight = 32;
+        /**
+         * Part of {@link #maxInFlight} only interactive requests may use, so transfers can not take all of it.
+         */
+        private int interactiveReserve = 8;
+    }
+
+    public static @Data class Outbox {
+        /**
+         * Contents of open files and of released ones waiting for their upload; pending uploads resume from here
+         * after a restart.
+         */
+        private Path directory = Path.of("tdlib-session-user-admin", "outbox");
+        /**
+         * Number of files uploaded in parallel.
+         */
+        private int workers = 2;
+        /**
+         * Delay before repeating a failed upload, doubled after every further failure up to the maximum.
+         */
+        private Duration retryDelay = Duration.ofSeconds(1);
+        private Duration maxRetryDelay = Duration.ofMinutes(5);
+        /**
+         * Number of attempts after which a failing upload is given up and its job moved to the failed jobs.
+         */
+        private int maxAttempts = 20;
+        /**
+         * Longest time a request waits for the uploads of the files it works on before it is rejected as
+         * temporarily unavailable.
+         */
+        private Duration awaitTimeout = Duration.ofSeconds(30);
+    }
 }
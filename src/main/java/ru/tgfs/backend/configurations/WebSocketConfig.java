@@ -0,0 +1,34 @@
+package ru.tgfs.backend.configurations;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+import ru.tgfs.backend.controllers.FileStreamHandler;
+
+@Configuration
+@EnableWebSocket
+@RequiredArgsConstructor
+public class WebSocketConfig implements WebSocketConfigurer {
+    /**
+     * Largest write FUSE hands over at once, plus the offset header of a frame.
+     */
+    private static final int MAX_FRAME_SIZE = 1024 * 1024 + FileStreamHandler.HEADER_SIZE;
+
+    private final FileStreamHandler fileStreamHandler;
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(fileStreamHandler, "/filesystem/stream");
+    }
+
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxBinaryMessageBufferSize(MAX_FRAME_SIZE);
+        return container;
+    }
+}
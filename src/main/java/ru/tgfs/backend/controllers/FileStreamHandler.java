@@ -0,0 +1,66 @@
+package ru.tgfs.backend.controllers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+import ru.tgfs.backend.services.storage.StorageService;
+
+/**
+ * Writes to one open file over a long-lived WebSocket at {@code /filesystem/stream?path=...}.
+ * <p>
+ * Every binary frame carries a write: the offset as a big-endian 64-bit integer followed by the bytes, whose
+ * length is the rest of the frame. Each write is answered with the offset right after the written bytes, so a
+ * client can keep several writes in flight and still report failures; a failed write closes the connection.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class FileStreamHandler extends BinaryWebSocketHandler {
+    public static final int HEADER_SIZE = Long.BYTES;
+    private static final String PATH_ATTRIBUTE = "path";
+
+    private final StorageService storageService;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        String path = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams().getFirst("path");
+        if (path == null) {
+            session.close(CloseStatus.BAD_DATA.withReason("No file path given"));
+            return;
+        }
+        session.getAttributes().put(PATH_ATTRIBUTE, UriUtils.decode(path, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        ByteBuffer frame = message.getPayload();
+        if (frame.remaining() < HEADER_SIZE) {
+            session.close(CloseStatus.BAD_DATA.withReason("Frame without an offset"));
+            return;
+        }
+        long offset = frame.getLong();
+        if (offset < 0) {
+            session.close(CloseStatus.BAD_DATA.withReason("Negative offset"));
+            return;
+        }
+        long end = offset + frame.remaining();
+
+        // The payload is written as is, from the buffer the frame was received into.
+        storageService.updateFile((String) session.getAttributes().get(PATH_ATTRIBUTE), frame, offset);
+        session.sendMessage(new BinaryMessage(ByteBuffer.allocate(HEADER_SIZE).putLong(0, end)));
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+        log.warn("Write stream of {} failed", session.getAttributes().get(PATH_ATTRIBUTE), exception);
+        super.handleTransportError(session, exception);
+    }
+}
@@ -1,13 +1,22 @@
 package ru.tgfs.backend.controllers;
 
-import java.io.File;
+import jakarta.servlet.http.HttpServletRequest;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.List;
 import java.util.stream.Collectors;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -15,13 +24,18 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
 import ru.tgfs.backend.exceptions.StorageNameAlreadyExistsException;
+import ru.tgfs.backend.exceptions.StorageUnavailableException;
+import ru.tgfs.backend.models.CopyRequest;
+import ru.tgfs.backend.models.DirectoryEntry;
 import ru.tgfs.backend.models.FileInfo;
 import ru.tgfs.backend.models.FileUpdate;
 import ru.tgfs.backend.models.NodeAttributes;
@@ -32,37 +46,60 @@ import ru.tgfs.backend.services.storage.StorageService;
 
 @RestController
 @RequiredArgsConstructor
+@Slf4j
 @RequestMapping("/filesystem")
 public class FileUploadController {
+    private static final int MAX_RANGE_LENGTH = 16 * 1024 * 1024;
+
     private final StorageService storageService;
+    private final ObjectMapper objectMapper;
 
     @PostMapping("/upload")
     public ResponseEntity<ResponseMessage> uploadFile(
         @RequestParam("path") String path, @RequestParam("file") MultipartFile file
     ) {
-        System.out.println("===ATTENTION=== UPLOAD");
         String message = "";
         try {
             storageService.store(path, file);
             message = "Uploaded the file successfully: " + file.getOriginalFilename();
             return ResponseEntity.status(HttpStatus.OK).body(new ResponseMessage(message));
         } catch (Exception e) {
-            System.out.println("GOT ERROR" + e.getMessage());
+            log.warn("Could not upload {}", path, e);
             message = "Could not upload the file: " + file.getOriginalFilename() + ". Error: " + e.getMessage();
             return ResponseEntity.status(HttpStatus.EXPECTATION_FAILED).body(new ResponseMessage(message));
         }
     }
 
-    @PostMapping("/update")
+    @PostMapping(value = "/update", consumes = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<Void> updateFile(@RequestBody FileUpdate fileUpdateInfo) {
-        System.out.println("===ATTENTION=== UPDATING");
-        storageService.updateFile(fileUpdateInfo.path(), fileUpdateInfo.bytes(), fileUpdateInfo.offset());
+        storageService.updateFile(
+            fileUpdateInfo.path(), ByteBuffer.wrap(fileUpdateInfo.bytes()), fileUpdateInfo.offset());
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * Writes the raw request body at the offset, streaming it into the open file instead of decoding base64.
+     */
+    @PostMapping(value = "/update", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @SneakyThrows
+    public ResponseEntity<Void> writeFile(
+        @RequestParam("path") String path, @RequestParam("offset") long offset, HttpServletRequest request
+    ) {
+        if (offset < 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        long length = request.getContentLengthLong();
+        try (ReadableByteChannel body = Channels.newChannel(request.getInputStream())) {
+            long written = storageService.updateFile(path, body, offset, length < 0 ? Long.MAX_VALUE : length);
+            if (length >= 0 && written < length) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
         return ResponseEntity.ok().build();
     }
 
     @PatchMapping("/update")
     public ResponseEntity<Void> truncateFile(@RequestBody TruncateRequest fileInfo) {
-        System.out.println("===ATTENTION=== TRUNCATING");
         storageService.truncateFile(fileInfo.path(), fileInfo.size());
         return ResponseEntity.ok().build();
     }
@@ -75,21 +112,46 @@ public class FileUploadController {
     @GetMapping("/list")
     public ResponseEntity<List<FileInfo>> getListFiles(@RequestBody String nodePath) {
         List<FileInfo> fileInfos = storageService
-                                       .loadDirectory(nodePath)
+                                       .loadDirectoryEntries(nodePath)
                                        .stream()
-                                       .map(path -> {
-                                           String filename = path.getFileName().toString();
-                                           Long size = new File(filename).length();
-                                           return new FileInfo(filename, size);
-                                       }).collect(Collectors.toList());
+                                       .map(entry -> new FileInfo(entry.name(), entry.attributes().size()))
+                                       .collect(Collectors.toList());
 
         return ResponseEntity.status(HttpStatus.OK).body(fileInfos);
     }
 
+    /**
+     * Lists a directory with the attributes of every child, written to the response entry by entry.
+     */
+    @GetMapping("/list/attributes")
+    public ResponseEntity<StreamingResponseBody> getListAttributes(@RequestBody String nodePath) {
+        List<DirectoryEntry> entries = storageService.loadDirectoryEntries(nodePath);
+        StreamingResponseBody body = output -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+                generator.writeStartArray();
+                for (DirectoryEntry entry : entries) {
+                    generator.writeObject(entry);
+                }
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /**
+     * Serves the whole file, or a single byte range when the request has a {@code Range} header. Longer ranges
+     * are answered with their first {@link #MAX_RANGE_LENGTH} bytes, as the Content-Range header shows.
+     */
     @GetMapping("/file")
     @ResponseBody
     @SneakyThrows
-    public ResponseEntity<Resource> getFile(@RequestBody String filename) {
+    public ResponseEntity<Resource> getFile(
+        @RequestBody String filename, @RequestHeader(value = HttpHeaders.RANGE, required = false) String range
+    ) {
+        if (range != null) {
+            return getFileRange(filename, range);
+        }
+
         Resource file = storageService.loadFileAsResource(filename);
         return ResponseEntity.ok()
                              .header(
@@ -97,12 +159,52 @@ public class FileUploadController {
                              .body(file);
     }
 
+    @GetMapping("/file/range")
+    public ResponseEntity<byte[]> readFile(
+        @RequestParam("path") String path, @RequestParam("offset") long offset, @RequestParam("length") int length
+    ) {
+        if (offset < 0 || length < 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        byte[] bytes = storageService.readFile(path, offset, Math.min(length, MAX_RANGE_LENGTH));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(bytes);
+    }
+
+    private ResponseEntity<Resource> getFileRange(String filename, String range) {
+        long size = storageService.loadAttributes(filename).size();
+        long start;
+        long end;
+        try {
+            HttpRange httpRange = HttpRange.parseRanges(range).get(0);
+            start = httpRange.getRangeStart(size);
+            end = httpRange.getRangeEnd(size);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                                 .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                                 .build();
+        }
+
+        byte[] bytes = storageService.readFile(filename, start, (int) Math.min(end - start + 1, MAX_RANGE_LENGTH));
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                             .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                             .header(HttpHeaders.CONTENT_RANGE,
+                                     "bytes " + start + "-" + (start + bytes.length - 1) + "/" + size)
+                             .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                             .body(new ByteArrayResource(bytes));
+    }
+
     @PatchMapping("/file")
     public ResponseEntity<Void> rename(@RequestBody RenameRequest renameRequest) {
         storageService.rename(renameRequest.oldPath(), renameRequest.newPath());
         return ResponseEntity.ok().build();
     }
 
+    @PostMapping("/copy")
+    public ResponseEntity<Void> copy(@RequestBody CopyRequest copyRequest) {
+        storageService.copy(copyRequest.path(), copyRequest.newPath());
+        return ResponseEntity.ok().build();
+    }
+
     @PostMapping("/file/temp")
     public ResponseEntity<Void> openFile(@RequestBody String filename) {
         storageService.openFile(filename);
@@ -130,7 +232,7 @@ public class FileUploadController {
 
     @DeleteMapping("/file")
     public void removeFile(@RequestBody String path) {
-        System.out.println("REMOVING FILE: " + path);
+        log.debug("Removing file {}", path);
         storageService.deleteFile(path);
     }
 
@@ -144,6 +246,13 @@ public class FileUploadController {
         return ResponseEntity.notFound().build();
     }
 
+    @ExceptionHandler(StorageUnavailableException.class)
+    public ResponseEntity<?> handleStorageUnavailable(StorageUnavailableException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                             .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter().toSeconds()))
+                             .build();
+    }
+
     @ExceptionHandler(StorageNameAlreadyExistsException.class)
     public ResponseEntity<?> handleStorageNameAlreadyExists(StorageNameAlreadyExistsException ignored) {
         return ResponseEntity.badRequest().build();
@@ -0,0 +1,9 @@
+package ru.tgfs.backend.exceptions;
+
+import java.time.Duration;
+
+public class StorageRateLimitedException extends StorageUnavailableException {
+    public StorageRateLimitedException(String message, Duration retryAfter) {
+        super(message, retryAfter);
+    }
+}
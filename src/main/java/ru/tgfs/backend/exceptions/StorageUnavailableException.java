@@ -0,0 +1,14 @@
+package ru.tgfs.backend.exceptions;
+
+import java.time.Duration;
+import lombok.Getter;
+
+@Getter
+public class StorageUnavailableException extends StorageException {
+    private final Duration retryAfter;
+
+    public StorageUnavailableException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+}
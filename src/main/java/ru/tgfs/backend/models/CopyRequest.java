@@ -0,0 +1,7 @@
+package ru.tgfs.backend.models;
+
+public record CopyRequest(
+    String path,
+    String newPath
+) {
+}
@@ -0,0 +1,10 @@
+package ru.tgfs.backend.models;
+
+import lombok.With;
+
+@With
+public record DirectoryEntry(
+    String name,
+    NodeAttributes attributes
+) {
+}
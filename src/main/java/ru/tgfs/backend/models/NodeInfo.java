@@ -1,8 +1,15 @@
 package ru.tgfs.backend.models;
 
+import java.util.List;
+
+/**
+ * @param size size in bytes, or -1 if it was not recorded for this file
+ */
 public record NodeInfo(
     String path,
     Boolean isDirectory,
-    Long messageId
+    List<Long> messageIds,
+    long size,
+    int modificationTime
 ) {
 }
@@ -0,0 +1,327 @@
+package ru.tgfs.backend.services.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Contents of an open file together with the fixed-size blocks changed since it was opened.
+ * <p>
+ * The contents live in a sparse temporary file written in place, so heap use does not depend on the file size
+ * and a write costs only the bytes it carries. Callers serialize access with the lock of the file path.
+ * <p>
+ * Blocks a sequential writer has moved past are handed to an {@link Uploader} right away, so that releasing
+ * the file only waits for the blocks written last. A block written again after its upload started counts as
+ * dirty once more, and the superseded upload is discarded.
+ */
+@Slf4j
+final class CachedFile implements Closeable {
+    private final Path path;
+    private final FileChannel channel;
+    /**
+     * Set once the contents were moved to another file, which closing this one must not affect.
+     */
+    private boolean detached;
+    private final long blockSize;
+    private final BitSet dirtyBlocks = new BitSet();
+    private final Uploader uploader;
+    private final Map<Integer, CompletableFuture<Long>> uploads = new HashMap<>();
+    private long sequentialEnd;
+    private int openCount = 1;
+
+    interface Uploader {
+        /**
+         * Starts uploading the current contents of a block.
+         *
+         * @return the chunk id of the uploaded block
+         */
+        CompletableFuture<Long> upload(FileChannel contents, int block);
+
+        /**
+         * Gives up an upload whose result is not going to be used.
+         */
+        void discard(CompletableFuture<Long> upload);
+    }
+
+    private CachedFile(Path path, long blockSize, Uploader uploader) throws IOException {
+        this(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE),
+             blockSize, uploader);
+    }
+
+    private CachedFile(Path path, FileChannel channel, long blockSize, Uploader uploader) {
+        this.path = path;
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.uploader = uploader;
+    }
+
+    /**
+     * @param directory directory of the temporary file, on the same file system as the files it is moved to
+     * @param uploader  uploads sealed blocks in the background, or {@code null} to upload nothing before release
+     */
+    static CachedFile create(Path directory, long blockSize, Uploader uploader) throws IOException {
+        return new CachedFile(Files.createTempFile(directory, "open-", ".tmp"), blockSize, uploader);
+    }
+
+    /**
+     * Opens a private copy of the given file.
+     */
+    static CachedFile copyOf(Path source, Path directory, long blockSize, Uploader uploader) throws IOException {
+        CachedFile file = create(directory, blockSize, uploader);
+        try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+            transfer(input, file.channel);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Opens contents staged earlier by {@link #moveTo} or {@link #copyTo}.
+     */
+    static CachedFile open(Path path, long blockSize, BitSet dirtyBlocks) throws IOException {
+        CachedFile file = new CachedFile(path, blockSize, null);
+        file.dirtyBlocks.or(dirtyBlocks);
+        return file;
+    }
+
+    /**
+     * Opens a private copy of the contents, with no dirty blocks.
+     */
+    CachedFile copy(Uploader uploader) throws IOException {
+        CachedFile file = create(path.getParent(), blockSize, uploader);
+        try {
+            transfer(channel, file.channel);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Durably copies the contents to the given path, without syncing its directory entry. The copy takes over
+     * the dirty blocks. Running uploads read this file, which its other handles keep writing, so they are
+     * discarded and their blocks stay dirty.
+     */
+    CachedFile copyTo(Path target) throws IOException {
+        FileChannel output = FileChannel.open(
+            target, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.SPARSE);
+        CachedFile file = new CachedFile(target, output, blockSize, null);
+        try {
+            transfer(channel, output);
+            output.force(true);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        uploads.forEach((block, upload) -> {
+            dirtyBlocks.set(block);
+            uploader.discard(upload);
+        });
+        uploads.clear();
+        handOver(file);
+        return file;
+    }
+
+    /**
+     * Durably moves the contents to the given path in the same directory, handing them over to the returned file
+     * together with the dirty blocks and running uploads, which are not interrupted. The directory entry is not
+     * synced.
+     */
+    CachedFile moveTo(Path target) throws IOException {
+        channel.force(true);
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+        detached = true;
+        CachedFile file = new CachedFile(target, channel, blockSize, null);
+        handOver(file);
+        return file;
+    }
+
+    void write(ByteBuffer source, long offset) throws IOException {
+        long length = channel.size();
+        long position = offset;
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+
+        // Writing past the end also changes the bytes between the old end and the offset.
+        markDirty(Math.min(offset, length), position);
+        seal(offset, position);
+    }
+
+    /**
+     * Writes bytes read from the source until it ends or {@code count} bytes are written.
+     *
+     * @return number of bytes written
+     */
+    long write(ReadableByteChannel source, long offset, long count) throws IOException {
+        long length = channel.size();
+        if (offset > length) {
+            // Nothing is transferred to positions past the end, so extend the file with a hole first.
+            channel.write(ByteBuffer.allocate(1), offset - 1);
+        }
+        long written = 0;
+        try {
+            while (written < count) {
+                long transferred = channel.transferFrom(source, offset + written, count - written);
+                if (transferred <= 0) {
+                    break;
+                }
+                written += transferred;
+            }
+        } finally {
+            markDirty(Math.min(offset, length), offset + written);
+            seal(offset, offset + written);
+        }
+        return written;
+    }
+
+    void truncate(long size) throws IOException {
+        long length = channel.size();
+        if (size < length) {
+            channel.truncate(size);
+        } else if (size > length) {
+            // Extends the file with a hole that reads as zeros.
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        markDirty(Math.min(length, size), Math.max(length, size));
+    }
+
+    byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    boolean isDirty() {
+        return !dirtyBlocks.isEmpty() || !uploads.isEmpty();
+    }
+
+    /**
+     * @return blocks changed since the file was opened or last uploaded, including those being uploaded
+     */
+    BitSet dirtyBlocks() {
+        BitSet blocks = (BitSet) dirtyBlocks.clone();
+        uploads.keySet().forEach(blocks::set);
+        return blocks;
+    }
+
+    /**
+     * Hands over the uploads started in the background. Their blocks count as dirty again until cleared.
+     */
+    Map<Integer, CompletableFuture<Long>> takeUploads() {
+        Map<Integer, CompletableFuture<Long>> taken = new HashMap<>(uploads);
+        taken.keySet().forEach(dirtyBlocks::set);
+        uploads.clear();
+        return taken;
+    }
+
+    void retain() {
+        openCount++;
+    }
+
+    boolean isLastHandle() {
+        return openCount == 1;
+    }
+
+    /**
+     * @return number of handles still open
+     */
+    int release() {
+        return --openCount;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public void close() {
+        if (detached) {
+            return;
+        }
+        if (uploader != null) {
+            uploads.values().forEach(uploader::discard);
+            uploads.clear();
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Could not remove cached file {}", path, e);
+        }
+    }
+
+    private void handOver(CachedFile file) {
+        file.dirtyBlocks.or(dirtyBlocks);
+        file.uploads.putAll(uploads);
+        dirtyBlocks.clear();
+        uploads.clear();
+    }
+
+    private static void transfer(FileChannel source, FileChannel target) throws IOException {
+        long size = source.size();
+        long position = 0;
+        while (position < size) {
+            position += source.transferTo(position, size - position, target);
+        }
+    }
+
+    private void markDirty(long from, long to) {
+        if (from >= to) {
+            return;
+        }
+        int first = (int) (from / blockSize);
+        int last = (int) ((to - 1) / blockSize);
+        dirtyBlocks.set(first, last + 1);
+
+        var iterator = uploads.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var upload = iterator.next();
+            if (upload.getKey() >= first && upload.getKey() <= last) {
+                uploader.discard(upload.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts uploading the dirty blocks a sequential write has completed, which are unlikely to change again.
+     */
+    private void seal(long offset, long end) {
+        boolean sequential = offset == sequentialEnd;
+        sequentialEnd = end;
+        if (!sequential || uploader == null) {
+            return;
+        }
+        int sealedEnd = (int) (end / blockSize);
+        for (int block = dirtyBlocks.nextSetBit((int) (offset / blockSize));
+             block >= 0 && block < sealedEnd;
+             block = dirtyBlocks.nextSetBit(block + 1)) {
+            dirtyBlocks.clear(block);
+            uploads.put(block, uploader.upload(channel, block));
+        }
+    }
+}
@@ -4,12 +4,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
@@ -19,10 +23,12 @@ import org.springframework.web.multipart.MultipartFile;
 import ru.tgfs.backend.exceptions.StorageException;
 import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
 import ru.tgfs.backend.exceptions.StorageNameAlreadyExistsException;
+import ru.tgfs.backend.models.DirectoryEntry;
 import ru.tgfs.backend.models.NodeAttributes;
 import ru.tgfs.backend.models.Privileges;
 
 // @Component
+@Slf4j
 public class LocalStorageService implements StorageService {
     @Value("${application.root-directory}")
     private Path rootLocation;
@@ -38,7 +44,7 @@ public class LocalStorageService implements StorageService {
 
     @Override
     public void store(String path, MultipartFile file) {
-        System.out.println("SAVING FILE: " + path);
+        log.debug("Saving file {}", path);
         try {
             Path destinationFile = Path.of(rootLocation.toString(), file.getOriginalFilename()).normalize();
             try (InputStream inputStream = file.getInputStream()) {
@@ -53,25 +59,34 @@ public class LocalStorageService implements StorageService {
 
     @SneakyThrows
     @Override
-    public void updateFile(String path, byte[] bytes, long offset) {
+    public void updateFile(String path, ByteBuffer bytes, long offset) {
         Path absPath = Path.of(rootLocation.toString(), path);
-        System.out.println("ABS PATH: " + absPath);
-        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(absPath));
-
-        int maxWriteIndex = (int) (offset + bytes.length);
-        synchronized (this) {
-            if (maxWriteIndex > contents.capacity()) {
-                // Need to create a new, larger buffer
-                ByteBuffer newContents = ByteBuffer.allocate(maxWriteIndex);
-                newContents.put(contents);
-                contents = newContents;
+        try (FileChannel channel = FileChannel.open(absPath, StandardOpenOption.WRITE)) {
+            long position = offset;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
             }
-            contents.position((int) offset);
-            contents.put(bytes);
-            contents.position(0);
         }
+    }
 
-        Files.write(absPath, contents.array());
+    @SneakyThrows
+    @Override
+    public long updateFile(String path, ReadableByteChannel source, long offset, long length) {
+        Path absPath = Path.of(rootLocation.toString(), path);
+        try (FileChannel channel = FileChannel.open(absPath, StandardOpenOption.WRITE)) {
+            if (offset > channel.size()) {
+                channel.write(ByteBuffer.allocate(1), offset - 1);
+            }
+            long written = 0;
+            while (written < length) {
+                long transferred = channel.transferFrom(source, offset + written, length - written);
+                if (transferred <= 0) {
+                    break;
+                }
+                written += transferred;
+            }
+            return written;
+        }
     }
 
     @Override
@@ -104,6 +119,16 @@ public class LocalStorageService implements StorageService {
         }
     }
 
+    @Override
+    public List<DirectoryEntry> loadDirectoryEntries(String directoryPath) {
+        return loadDirectory(directoryPath).stream()
+                                           .map(path -> new DirectoryEntry(
+                                               path.getFileName().toString(),
+                                               loadAttributes(Path.of(directoryPath, path.toString()).toString())
+                                           ))
+                                           .toList();
+    }
+
     @Override
     public Resource loadFileAsResource(String filePath) {
         // Path absPath = rootLocation.resolve(filePath);
@@ -116,6 +141,24 @@ public class LocalStorageService implements StorageService {
         }
     }
 
+    @Override
+    @SneakyThrows
+    public byte[] readFile(String path, long offset, int length) {
+        Path absPath = Path.of(rootLocation.toString(), path);
+        if (Files.notExists(absPath)) {
+            throw new StorageFileNotFoundException("Could not read file: " + path);
+        }
+        try (FileChannel channel = FileChannel.open(absPath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            return buffer.array();
+        }
+    }
+
     // TODO check if this is valid
     @Override
     @SneakyThrows
@@ -146,11 +189,24 @@ public class LocalStorageService implements StorageService {
         throw new NoSuchMethodException();
     }
 
+    @Override
+    @SneakyThrows
+    public void copy(String path, String newPath) {
+        Path source = Path.of(rootLocation.toString(), path).normalize();
+        Path target = Path.of(rootLocation.toString(), newPath).normalize();
+        if (!source.startsWith(rootLocation) || !target.startsWith(rootLocation)) {
+            throw new StorageException("Path outside ROOT directory!");
+        }
+        if (Files.isDirectory(target)) {
+            target = target.resolve(source.getFileName());
+        }
+        FileSystemUtils.copyRecursively(source, target);
+    }
+
     @Override
     @SneakyThrows
     public void deleteFile(String path) {
         Path absolutePath = Path.of(rootLocation.toString(), path);
-        System.out.println("ABSPATH: " + absolutePath);
         if (absolutePath.startsWith(rootLocation)) {
             Files.delete(absolutePath);
         }
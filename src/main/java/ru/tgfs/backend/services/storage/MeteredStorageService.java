@@ -0,0 +1,165 @@
+package ru.tgfs.backend.services.storage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import ru.tgfs.backend.models.DirectoryEntry;
+import ru.tgfs.backend.models.NodeAttributes;
+
+/**
+ * Times every operation of the storage service as {@code tgfs.storage.operations} and counts the bytes read and
+ * written through it.
+ */
+@Service
+@Primary
+public class MeteredStorageService implements StorageService {
+    private final StorageService delegate;
+    private final MeterRegistry meterRegistry;
+    private final Counter readBytes;
+    private final Counter writtenBytes;
+
+    public MeteredStorageService(TelegramStorageService delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.meterRegistry = meterRegistry;
+        this.readBytes = Counter.builder("tgfs.storage.bytes")
+                                .baseUnit(BaseUnits.BYTES)
+                                .tag("direction", "read")
+                                .register(meterRegistry);
+        this.writtenBytes = Counter.builder("tgfs.storage.bytes")
+                                   .baseUnit(BaseUnits.BYTES)
+                                   .tag("direction", "write")
+                                   .register(meterRegistry);
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+    }
+
+    @Override
+    public List<Path> loadDirectory(String directoryPath) {
+        return timed("loadDirectory", () -> delegate.loadDirectory(directoryPath));
+    }
+
+    @Override
+    public List<DirectoryEntry> loadDirectoryEntries(String directoryPath) {
+        return timed("loadDirectoryEntries", () -> delegate.loadDirectoryEntries(directoryPath));
+    }
+
+    @Override
+    public Resource loadFileAsResource(String filePath) {
+        return timed("loadFileAsResource", () -> delegate.loadFileAsResource(filePath));
+    }
+
+    @Override
+    public byte[] readFile(String path, long offset, int length) {
+        byte[] bytes = timed("readFile", () -> delegate.readFile(path, offset, length));
+        readBytes.increment(bytes.length);
+        return bytes;
+    }
+
+    @Override
+    public NodeAttributes loadAttributes(String filePath) {
+        return timed("loadAttributes", () -> delegate.loadAttributes(filePath));
+    }
+
+    @Override
+    public void rename(String oldPath, String newPath) {
+        timed("rename", () -> delegate.rename(oldPath, newPath));
+    }
+
+    @Override
+    public void copy(String path, String newPath) {
+        timed("copy", () -> delegate.copy(path, newPath));
+    }
+
+    @Override
+    public void store(String path, MultipartFile file) {
+        timed("store", () -> delegate.store(path, file));
+        writtenBytes.increment(file.getSize());
+    }
+
+    @Override
+    public void updateFile(String path, ByteBuffer bytes, long offset) {
+        int length = bytes.remaining();
+        timed("updateFile", () -> delegate.updateFile(path, bytes, offset));
+        writtenBytes.increment(length);
+    }
+
+    @Override
+    public long updateFile(String path, ReadableByteChannel source, long offset, long length) {
+        long written = timed("updateFile", () -> delegate.updateFile(path, source, offset, length));
+        writtenBytes.increment(written);
+        return written;
+    }
+
+    @Override
+    public void truncateFile(String path, long size) {
+        timed("truncateFile", () -> delegate.truncateFile(path, size));
+    }
+
+    @Override
+    public void openFile(String path) {
+        timed("openFile", () -> delegate.openFile(path));
+    }
+
+    @Override
+    public void releaseFile(String path) {
+        timed("releaseFile", () -> delegate.releaseFile(path));
+    }
+
+    @Override
+    public void deleteFile(String path) {
+        timed("deleteFile", () -> delegate.deleteFile(path));
+    }
+
+    @Override
+    public void createDirectory(String path) {
+        timed("createDirectory", () -> delegate.createDirectory(path));
+    }
+
+    @Override
+    public void deleteDirectory(String directoryPath) {
+        timed("deleteDirectory", () -> delegate.deleteDirectory(directoryPath));
+    }
+
+    @Override
+    public void deleteAll() {
+        timed("deleteAll", delegate::deleteAll);
+    }
+
+    private void timed(String operation, Runnable action) {
+        timed(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private <T> T timed(String operation, Supplier<T> action) {
+        long start = System.nanoTime();
+        String exception = "none";
+        try {
+            return action.get();
+        } catch (Throwable e) {
+            exception = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            Timer.builder("tgfs.storage.operations")
+                 .tag("operation", operation)
+                 .tag("exception", exception)
+                 .register(meterRegistry)
+                 .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package ru.tgfs.backend.services.storage;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
+import ru.tgfs.backend.models.DirectoryEntry;
 import ru.tgfs.backend.models.NodeAttributes;
 
 public interface StorageService {
@@ -12,15 +15,37 @@ public interface StorageService {
 
     List<Path> loadDirectory(String directoryPath);
 
+    /**
+     * Lists a directory together with the attributes of every child.
+     */
+    List<DirectoryEntry> loadDirectoryEntries(String directoryPath);
+
     Resource loadFileAsResource(String filePath);
 
+    /**
+     * @return up to {@code length} bytes of the file starting at {@code offset}
+     */
+    byte[] readFile(String path, long offset, int length);
+
     NodeAttributes loadAttributes(String filePath);
 
     void rename(String oldPath, String newPath);
 
+    /**
+     * Copies a file, or a directory with everything in it.
+     */
+    void copy(String path, String newPath);
+
     void store(String path, MultipartFile file);
 
-    void updateFile(String path, byte[] bytes, long offset);
+    void updateFile(String path, ByteBuffer bytes, long offset);
+
+    /**
+     * Writes bytes read from the source until it ends or {@code length} bytes are written.
+     *
+     * @return number of bytes written
+     */
+    long updateFile(String path, ReadableByteChannel source, long offset, long length);
 
     void truncateFile(String path, long size);
 
@@ -0,0 +1,22 @@
+package ru.tgfs.backend.services.storage;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by paths with the same hash, so per-path locking needs no per-path allocation.
+ */
+final class StripedLocks {
+    private final ReentrantLock[] locks;
+
+    StripedLocks(int stripes) {
+        locks = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    ReentrantLock get(String path) {
+        int hash = path.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+    }
+}
@@ -1,11 +1,25 @@
 package ru.tgfs.backend.services.storage;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import jakarta.annotation.PreDestroy;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -13,8 +27,10 @@ import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import ru.tgfs.backend.models.DirectoryEntry;
 import ru.tgfs.backend.models.NodeAttributes;
 import ru.tgfs.backend.models.Privileges;
+import ru.tgfs.backend.services.tdlight.DownloadCache;
 import ru.tgfs.backend.services.tdlight.TdlightInitializer;
 import ru.tgfs.backend.services.tdlight.TgfsApplication;
 
@@ -22,67 +38,173 @@ import ru.tgfs.backend.services.tdlight.TgfsApplication;
 @RequiredArgsConstructor
 @Slf4j
 public class TelegramStorageService implements StorageService {
+    private static final int LOCK_STRIPES = 256;
+
     private final TdlightInitializer initializer;
+    private final MeterRegistry meterRegistry;
     private TgfsApplication app;
+    private UploadOutbox outbox;
 
-    private final Map<String, byte[]> cache = new HashMap<>();
+    private final Map<String, CachedFile> cache = new ConcurrentHashMap<>();
+    private final StripedLocks pathLocks = new StripedLocks(LOCK_STRIPES);
 
     @Override
+    @SneakyThrows
     public void init() {
         app = initializer.init();
+        outbox = new UploadOutbox(app.getConfig().getOutbox(), app.getChunkSize(), new UploadOutbox.Destination() {
+            @Override
+            public void write(
+                String path, FileChannel contents, BitSet dirtyBlocks, Map<Integer, CompletableFuture<Long>> uploads
+            ) {
+                app.writeFile(path, contents, dirtyBlocks, uploads);
+            }
+
+            @Override
+            public void discard(CompletableFuture<Long> upload) {
+                app.discardUpload(upload);
+            }
+        });
+
+        Gauge.builder("tgfs.files.open", cache, Map::size).register(meterRegistry);
+        Gauge.builder("tgfs.files.open.size", this, service -> service.bufferedBytes(service.cache.values()))
+             .description("Size of the local copies of open files")
+             .baseUnit(BaseUnits.BYTES)
+             .register(meterRegistry);
+        Gauge.builder("tgfs.outbox.files", outbox, UploadOutbox::pendingCount)
+             .description("Released files waiting for their upload")
+             .register(meterRegistry);
+        Gauge.builder("tgfs.outbox.failed", outbox, UploadOutbox::failedCount)
+             .description("Uploads given up after failing, kept in the failed jobs of the outbox")
+             .register(meterRegistry);
+    }
+
+    /**
+     * Stops the outbox before the application it uploads to is closed. Unfinished uploads resume on the next
+     * start.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (outbox != null) {
+            outbox.close();
+        }
     }
 
     @SneakyThrows
     @Override
     public void store(String path, MultipartFile file) {
+        outbox.await(path);
         app.saveFile(path, file);
     }
 
     @SneakyThrows
     @Override
-    public void updateFile(String path, byte[] bytes, long offset) {
-        byte[] data = cache.get(path);
+    public void updateFile(String path, ByteBuffer bytes, long offset) {
+        Lock lock = pathLocks.get(path);
+        lock.lock();
+        try {
+            openForWriting(path).write(bytes, offset);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        ByteBuffer contents = data == null ? ByteBuffer.allocate(1) : ByteBuffer.wrap(data);
+    /**
+     * Spools the bytes to a temporary file before taking the lock of the path, which other paths share, so that
+     * a slow client does not hold it while its body arrives. The whole write is not buffered in memory.
+     */
+    @SneakyThrows
+    @Override
+    public long updateFile(String path, ReadableByteChannel source, long offset, long length) {
+        Path spool = Files.createTempFile(outbox.directory(), "write-", ".tmp");
+        try (FileChannel buffer = FileChannel.open(
+            spool, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            long received = 0;
+            while (received < length) {
+                long transferred = buffer.transferFrom(source, received, length - received);
+                if (transferred <= 0) {
+                    break;
+                }
+                received += transferred;
+            }
 
-        int maxWriteIndex = (int) (offset + bytes.length);
-        synchronized (this) {
-            if (maxWriteIndex > contents.capacity()) {
-                // Need to create a new, larger buffer
-                ByteBuffer newContents = ByteBuffer.allocate(maxWriteIndex);
-                newContents.put(contents);
-                contents = newContents;
+            Lock lock = pathLocks.get(path);
+            lock.lock();
+            try {
+                return openForWriting(path).write(buffer, offset, received);
+            } finally {
+                lock.unlock();
             }
-            contents.position((int) offset);
-            contents.put(bytes);
-            contents.position(0);
         }
-
-        cache.put(path, contents.array());
     }
 
+    @SneakyThrows
     @Override
     public void truncateFile(String path, long size) {
-        byte[] data = cache.get(path);
-        if (data != null) {
-            cache.put(path, Arrays.copyOf(data, (int) size));
+        Lock lock = pathLocks.get(path);
+        lock.lock();
+        try {
+            CachedFile file = cache.get(path);
+            if (file != null) {
+                file.truncate(size);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @SneakyThrows
     @Override
     public void openFile(String path) {
-        System.out.println("Load file into cache: " + path);
-        cache.put(path, loadFileAsResource(path).getContentAsByteArray());
+        Lock lock = pathLocks.get(path);
+        lock.lock();
+        try {
+            CachedFile file = cache.get(path);
+            if (file != null) {
+                file.retain();
+                return;
+            }
+            UploadOutbox.Job pending = outbox.pending(path);
+            file = pending != null ? pending.copy(uploader(path)) : null;
+            if (file == null) {
+                log.debug("Loading {} into the cache", path);
+                try (DownloadCache.Lease download = app.readFile(path)) {
+                    file = CachedFile.copyOf(download.path(), outbox.directory(), app.getChunkSize(), uploader(path));
+                }
+            }
+            cache.put(path, file);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Stages the blocks changed through any handle of the file in the outbox, which uploads them in the background.
+     * The cached contents are dropped with the last handle.
+     */
     @SneakyThrows
     @Override
     public void releaseFile(String path) {
-        byte[] fileData = cache.remove(path);
-        if (fileData != null) {
-            System.out.println("Releasing cache of size: " + fileData.length);
-            app.writeFile(path, fileData, 0);
+        Lock lock = pathLocks.get(path);
+        lock.lock();
+        try {
+            CachedFile file = cache.get(path);
+            if (file == null) {
+                return;
+            }
+            try {
+                if (file.isDirty()) {
+                    log.debug("Releasing {} with dirty blocks {}", path, file.dirtyBlocks());
+                    outbox.submit(path, file, (int) (System.currentTimeMillis() / 1000));
+                }
+            } finally {
+                if (file.release() == 0) {
+                    cache.remove(path);
+                    file.close();
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -91,28 +213,126 @@ public class TelegramStorageService implements StorageService {
         return app.listDirectory(directoryPath).stream().map(Path::of).toList();
     }
 
+    @Override
+    public List<DirectoryEntry> loadDirectoryEntries(String directoryPath) {
+        return app.listDirectoryAttributes(directoryPath)
+                  .stream()
+                  .map(entry -> entry.withAttributes(
+                      withPrivileges(withPending(child(directoryPath, entry.name()), entry.attributes()))))
+                  .toList();
+    }
+
+    /**
+     * The downloaded file is kept until the stream of the returned resource is closed, so it has to be read once.
+     */
     @Override
     public Resource loadFileAsResource(String filePath) {
-        return new FileSystemResource(app.readFile(filePath));
+        outbox.await(filePath);
+        return new LeasedResource(app.readFile(filePath));
+    }
+
+    /**
+     * Serves reads of an open file from its cached contents, and of a released file from the outbox until its
+     * upload is done, so they see writes that are not uploaded yet.
+     */
+    @SneakyThrows
+    @Override
+    public byte[] readFile(String path, long offset, int length) {
+        Lock lock = pathLocks.get(path);
+        lock.lock();
+        try {
+            CachedFile file = cache.get(path);
+            if (file != null) {
+                return file.read(offset, length);
+            }
+        } finally {
+            lock.unlock();
+        }
+        UploadOutbox.Job pending = outbox.pending(path);
+        byte[] staged = pending != null ? pending.read(offset, length) : null;
+        return staged != null ? staged : app.readFile(path, offset, length);
     }
 
     @Override
     public NodeAttributes loadAttributes(String filePath) {
-        System.out.println("Loading attributes for: " + filePath);
+        return withPrivileges(withPending(filePath, app.getPathInfo(filePath)));
+    }
+
+    /**
+     * Reports the size and modification time of the staged contents of a file waiting in the outbox.
+     */
+    @SneakyThrows
+    private NodeAttributes withPending(String path, NodeAttributes attributes) {
+        UploadOutbox.Job pending = outbox.pending(path);
+        long size = pending != null ? pending.size() : -1;
+        return size < 0 ? attributes : attributes.withSize(size).withModificationTime(pending.modificationTime());
+    }
 
-        return app.getPathInfo(filePath)
-                  .withOwnerPrivileges(Privileges.RW())
-                  .withGroupPrivileges(Privileges.RW())
-                  .withOthersPrivileges(Privileges.RW());
+    private long bufferedBytes(Collection<CachedFile> files) {
+        long bytes = 0;
+        for (CachedFile file : files) {
+            try {
+                bytes += file.size();
+            } catch (IOException ignored) {
+                // Closed by a concurrent release.
+            }
+        }
+        return bytes;
+    }
+
+    private static String child(String directoryPath, String name) {
+        return directoryPath.endsWith("/") ? directoryPath + name : directoryPath + "/" + name;
+    }
+
+    private CachedFile openForWriting(String path) throws IOException {
+        CachedFile file = cache.get(path);
+        if (file == null) {
+            file = CachedFile.create(outbox.directory(), app.getChunkSize(), uploader(path));
+            cache.put(path, file);
+        }
+        return file;
+    }
+
+    private CachedFile.Uploader uploader(String path) {
+        if (!app.getConfig().getTransfer().isUploadWhileWriting()) {
+            return null;
+        }
+        return new CachedFile.Uploader() {
+            @Override
+            public CompletableFuture<Long> upload(FileChannel contents, int block) {
+                return app.uploadBlock(path, contents, block);
+            }
+
+            @Override
+            public void discard(CompletableFuture<Long> upload) {
+                app.discardUpload(upload);
+            }
+        };
+    }
+
+    private static NodeAttributes withPrivileges(NodeAttributes attributes) {
+        return attributes.withOwnerPrivileges(Privileges.RW())
+                         .withGroupPrivileges(Privileges.RW())
+                         .withOthersPrivileges(Privileges.RW());
     }
 
     @Override
     public void rename(String oldPath, String newPath) {
+        outbox.await(oldPath);
+        outbox.await(newPath);
         app.rename(oldPath, newPath);
     }
 
+    @Override
+    public void copy(String path, String newPath) {
+        outbox.await(path);
+        outbox.await(newPath);
+        app.copy(path, newPath);
+    }
+
     @Override
     public void deleteFile(String path) {
+        outbox.await(path);
         app.deletePath(path);
     }
 
@@ -123,11 +343,39 @@ public class TelegramStorageService implements StorageService {
 
     @Override
     public void deleteDirectory(String directoryPath) {
+        outbox.await(directoryPath);
         app.deletePath(directoryPath);
     }
 
     @Override
     public void deleteAll() {
+        outbox.await("/");
         app.deletePath("/");
     }
+
+    /**
+     * Downloaded file that stays in the download cache until its stream is closed.
+     */
+    private static final class LeasedResource extends FileSystemResource {
+        private final DownloadCache.Lease lease;
+
+        LeasedResource(DownloadCache.Lease lease) {
+            super(lease.path());
+            this.lease = lease;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(super.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+        }
+    }
 }
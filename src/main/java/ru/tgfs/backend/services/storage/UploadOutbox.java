@@ -0,0 +1,466 @@
+package ru.tgfs.backend.services.storage;
+
+import it.tdlight.client.TelegramError;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.tgfs.backend.configurations.TelegramConfig;
+import ru.tgfs.backend.exceptions.StorageException;
+import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
+import ru.tgfs.backend.exceptions.StorageUnavailableException;
+
+/**
+ * Released files waiting for their upload, kept in a local directory so that releasing a file does not wait for
+ * Telegram and pending uploads survive a restart.
+ * <p>
+ * Every job is a copy of the file contents next to a descriptor with the path and the blocks to upload. Jobs of
+ * one path run in the order they were released, jobs of different paths in parallel. A failed job is repeated
+ * with growing delays until it succeeds or its file is gone. Until then, the latest job of a path serves reads.
+ * <p>
+ * A job that fails with an error repeating can't fix, or too many times, is moved to the {@code failed}
+ * subdirectory and kept there for inspection. The next job of its path uploads its dirty blocks as well.
+ */
+@Slf4j
+final class UploadOutbox implements AutoCloseable {
+    private static final String JOB_SUFFIX = ".job";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String FAILED_DIRECTORY = "failed";
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final TelegramConfig.Outbox config;
+    private final Path directory;
+    private final Path failedDirectory;
+    private final long blockSize;
+    private final Destination destination;
+    private final ExecutorService workers;
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    private final Map<String, Job> latest = new ConcurrentHashMap<>();
+    /**
+     * Completion of the last job of every path with jobs left, guarded by {@code this}.
+     */
+    private final Map<String, CompletableFuture<Void>> tails = new HashMap<>();
+    /**
+     * Dirty blocks of failed jobs that later jobs of the same path have to upload, guarded by {@code this}.
+     */
+    private final Map<String, BitSet> undelivered = new HashMap<>();
+
+    private enum Outcome {
+        DONE,
+        FAILED,
+        INTERRUPTED
+    }
+
+    interface Destination {
+        /**
+         * Uploads the dirty blocks of a file and switches the file over to them. The uploads it takes over are
+         * removed from the map.
+         */
+        void write(
+            String path, FileChannel contents, BitSet dirtyBlocks, Map<Integer, CompletableFuture<Long>> uploads);
+
+        /**
+         * Gives up an upload whose result is not going to be used.
+         */
+        void discard(CompletableFuture<Long> upload);
+    }
+
+    UploadOutbox(TelegramConfig.Outbox config, long blockSize, Destination destination) throws IOException {
+        this.config = config;
+        this.directory = config.getDirectory().toAbsolutePath();
+        this.failedDirectory = directory.resolve(FAILED_DIRECTORY);
+        this.blockSize = blockSize;
+        this.destination = destination;
+        this.workers = Executors.newFixedThreadPool(
+            config.getWorkers(), Thread.ofVirtual().name("upload-outbox-", 1).factory());
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Stages the contents and dirty blocks of a file for upload. The contents are moved out of the last handle of
+     * the file and copied otherwise; either way the file has no dirty blocks afterwards.
+     */
+    void submit(String path, CachedFile file, int modificationTime) throws IOException {
+        long id = nextId.getAndIncrement();
+
+        // The contents go first and are durable before the descriptor: contents without one are dropped on
+        // recovery.
+        CachedFile contents = file.isLastHandle() ? file.moveTo(data(id)) : file.copyTo(data(id));
+        try {
+            syncDirectory();
+            writeDescriptor(id, path, contents.dirtyBlocks(), modificationTime);
+        } catch (IOException e) {
+            log.warn("Could not record outbox job {} of {}, its upload is lost on restart", id, path, e);
+        }
+        enqueue(new Job(id, path, contents, modificationTime, contents.takeUploads()));
+    }
+
+    /**
+     * @return directory for the contents of open files, which are moved into the outbox when released
+     */
+    Path directory() {
+        return directory;
+    }
+
+    /**
+     * @return the contents of the file released last, or {@code null} if they are uploaded already
+     */
+    Job pending(String path) {
+        return latest.get(path);
+    }
+
+    /**
+     * @return number of paths with released contents waiting for their upload
+     */
+    int pendingCount() {
+        return latest.size();
+    }
+
+    /**
+     * @return number of jobs given up and kept in the failed jobs
+     */
+    int failedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Waits until the jobs of a path and of everything under it are done.
+     *
+     * @throws StorageUnavailableException if they are not done within the configured time
+     */
+    @SneakyThrows
+    void await(String path) {
+        List<CompletableFuture<Void>> pending;
+        synchronized (this) {
+            pending = tails.entrySet()
+                           .stream()
+                           .filter(tail -> isWithin(tail.getKey(), path))
+                           .map(Map.Entry::getValue)
+                           .toList();
+        }
+        long deadline = System.nanoTime() + config.getAwaitTimeout().toNanos();
+        for (CompletableFuture<Void> tail : pending) {
+            try {
+                tail.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                throw new StorageUnavailableException(
+                    "Uploads of " + path + " are still running", config.getRetryDelay());
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and waits a while for running writes to give up. Unfinished jobs stay in the directory and
+     * resume on the next start.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Outbox workers did not stop within {}", CLOSE_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void enqueue(Job job) {
+        latest.put(job.path, job);
+        CompletableFuture<Void> next = tails.getOrDefault(job.path, CompletableFuture.completedFuture(null))
+                                            .thenRunAsync(() -> run(job), workers);
+        tails.put(job.path, next);
+        next.whenComplete((ignored, e) -> {
+            synchronized (this) {
+                tails.remove(job.path, next);
+            }
+        });
+    }
+
+    private void run(Job job) {
+        BitSet dirtyBlocks = job.contents.dirtyBlocks();
+        synchronized (this) {
+            BitSet failed = undelivered.remove(job.path);
+            if (failed != null) {
+                dirtyBlocks.or(failed);
+            }
+        }
+        try {
+            switch (write(job, dirtyBlocks)) {
+                case DONE -> finish(job);
+                case FAILED -> fail(job, dirtyBlocks);
+                case INTERRUPTED -> {
+                }
+            }
+        } finally {
+            // Uploads no write took over are not going to be used, also not by a job resumed after a restart.
+            job.uploads.values().forEach(destination::discard);
+            job.uploads.clear();
+        }
+    }
+
+    private Outcome write(Job job, BitSet dirtyBlocks) {
+        Duration delay = config.getRetryDelay();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                destination.write(job.path, job.contents.channel(), dirtyBlocks, job.uploads);
+                return Outcome.DONE;
+            } catch (StorageFileNotFoundException e) {
+                log.warn("Dropping upload of {}: the file no longer exists", job.path);
+                return Outcome.DONE;
+            } catch (Exception e) {
+                if (workers.isShutdown()) {
+                    return Outcome.INTERRUPTED;
+                }
+                if (isPermanent(e) || attempt >= config.getMaxAttempts()) {
+                    log.error("Upload of {} failed after {} attempts, giving up", job.path, attempt, e);
+                    return Outcome.FAILED;
+                }
+                log.warn("Upload of {} failed, retrying in {}", job.path, delay, e);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return Outcome.INTERRUPTED;
+            }
+            Duration doubled = delay.multipliedBy(2);
+            delay = doubled.compareTo(config.getMaxRetryDelay()) < 0 ? doubled : config.getMaxRetryDelay();
+        }
+    }
+
+    private void finish(Job job) {
+        latest.remove(job.path, job);
+        job.close();
+        try {
+            Files.deleteIfExists(descriptor(job.id));
+        } catch (IOException e) {
+            log.warn("Could not remove outbox job {}", job.id, e);
+        }
+    }
+
+    /**
+     * Moves a job that is given up to the failed jobs. Its dirty blocks are passed on to a later job of the path.
+     */
+    private void fail(Job job, BitSet dirtyBlocks) {
+        synchronized (this) {
+            if (latest.get(job.path) != job) {
+                undelivered.computeIfAbsent(job.path, path -> new BitSet()).or(dirtyBlocks);
+            }
+        }
+        latest.remove(job.path, job);
+        failedCount.incrementAndGet();
+        try {
+            Files.createDirectories(failedDirectory);
+            Files.move(data(job.id), failedDirectory.resolve(job.id + DATA_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(
+                descriptor(job.id), failedDirectory.resolve(job.id + JOB_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+            log.info("Moved outbox job {} of {} to {}", job.id, job.path, failedDirectory);
+        } catch (IOException e) {
+            log.warn("Could not move outbox job {} to the failed jobs", job.id, e);
+        }
+        job.close();
+    }
+
+    /**
+     * Errors repeating the upload can't fix: requests Telegram rejects as invalid and errors of the code itself.
+     * Timeouts, flood waits and I/O errors are worth another attempt.
+     */
+    private static boolean isPermanent(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return switch (e) {
+            case TelegramError error -> error.getErrorCode() == 400 || error.getErrorCode() == 404;
+            case StorageException ignored -> false;
+            case UncheckedIOException ignored -> false;
+            case RuntimeException ignored -> true;
+            default -> false;
+        };
+    }
+
+    private void recover() throws IOException {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries = files.toList();
+        }
+
+        List<Long> jobs = new ArrayList<>();
+        for (Path entry : entries) {
+            String name = entry.getFileName().toString();
+            if (name.endsWith(".tmp")) {
+                Files.delete(entry);
+            } else if (name.endsWith(JOB_SUFFIX)) {
+                jobs.add(id(name, JOB_SUFFIX));
+            } else if (name.endsWith(DATA_SUFFIX) && !Files.exists(descriptor(id(name, DATA_SUFFIX)))) {
+                Files.delete(entry);
+            }
+        }
+        jobs.sort(Comparator.naturalOrder());
+        List<Long> failed = failedJobs();
+        failedCount.set(failed.size());
+        if (!failed.isEmpty()) {
+            log.warn("{} failed uploads are kept in {}", failed.size(), failedDirectory);
+        }
+        // Ids of failed jobs are not reused, so that moving a job to them never replaces one.
+        nextId.set(Stream.concat(jobs.stream(), failed.stream()).mapToLong(Long::longValue).max().orElse(-1) + 1);
+
+        for (long id : jobs) {
+            if (!Files.exists(data(id))) {
+                log.warn("Dropping outbox job {} without contents", id);
+                Files.delete(descriptor(id));
+                continue;
+            }
+            Properties descriptor = new Properties();
+            try (Reader reader = Files.newBufferedReader(descriptor(id), StandardCharsets.UTF_8)) {
+                descriptor.load(reader);
+            }
+            BitSet dirtyBlocks = new BitSet();
+            Arrays.stream(descriptor.getProperty("blocks").split(","))
+                  .filter(block -> !block.isEmpty())
+                  .forEach(block -> dirtyBlocks.set(Integer.parseInt(block)));
+
+            String path = descriptor.getProperty("path");
+            log.info("Resuming upload of {}", path);
+            enqueue(new Job(
+                id, path, CachedFile.open(data(id), blockSize, dirtyBlocks),
+                Integer.parseInt(descriptor.getProperty("modificationTime")), new HashMap<>()));
+        }
+    }
+
+    private List<Long> failedJobs() throws IOException {
+        if (!Files.isDirectory(failedDirectory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(failedDirectory)) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.endsWith(JOB_SUFFIX))
+                        .map(name -> id(name, JOB_SUFFIX))
+                        .toList();
+        }
+    }
+
+    private void writeDescriptor(long id, String path, BitSet dirtyBlocks, int modificationTime) throws IOException {
+        Properties descriptor = new Properties();
+        descriptor.setProperty("path", path);
+        descriptor.setProperty(
+            "blocks", dirtyBlocks.stream().mapToObj(String::valueOf).collect(Collectors.joining(",")));
+        descriptor.setProperty("modificationTime", String.valueOf(modificationTime));
+
+        Path temporary = directory.resolve(id + JOB_SUFFIX + ".tmp");
+        try (Writer output = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            descriptor.store(output, null);
+        }
+        try (FileChannel channel = FileChannel.open(temporary)) {
+            channel.force(true);
+        }
+        Files.move(temporary, descriptor(id), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static long id(String fileName, String suffix) {
+        return Long.parseLong(fileName.substring(0, fileName.length() - suffix.length()));
+    }
+
+    private Path descriptor(long id) {
+        return directory.resolve(id + JOB_SUFFIX);
+    }
+
+    private Path data(long id) {
+        return directory.resolve(id + DATA_SUFFIX);
+    }
+
+    private static boolean isWithin(String path, String ancestor) {
+        return path.equals(ancestor) || path.startsWith(ancestor.endsWith("/") ? ancestor : ancestor + "/");
+    }
+
+    /**
+     * Staged contents of a released file. They are closed once uploaded, after which reads return nothing.
+     */
+    static final class Job {
+        private final long id;
+        private final String path;
+        private final CachedFile contents;
+        private final int modificationTime;
+        private final Map<Integer, CompletableFuture<Long>> uploads;
+        private boolean closed;
+
+        private Job(
+            long id, String path, CachedFile contents, int modificationTime,
+            Map<Integer, CompletableFuture<Long>> uploads
+        ) {
+            this.id = id;
+            this.path = path;
+            this.contents = contents;
+            this.modificationTime = modificationTime;
+            this.uploads = uploads;
+        }
+
+        int modificationTime() {
+            return modificationTime;
+        }
+
+        /**
+         * @return the size of the staged contents, or -1 once they are uploaded
+         */
+        synchronized long size() throws IOException {
+            return closed ? -1 : contents.size();
+        }
+
+        /**
+         * @return up to {@code length} bytes starting at {@code offset}, or {@code null} once they are uploaded
+         */
+        synchronized byte[] read(long offset, int length) throws IOException {
+            return closed ? null : contents.read(offset, length);
+        }
+
+        /**
+         * @return a private copy of the staged contents, or {@code null} once they are uploaded
+         */
+        synchronized CachedFile copy(CachedFile.Uploader uploader) throws IOException {
+            return closed ? null : contents.copy(uploader);
+        }
+
+        private synchronized void close() {
+            closed = true;
+            contents.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ru.tgfs.backend.services.tdlight;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Content hashes and reference counts of stored chunks, so that identical chunks are uploaded once.
+ * <p>
+ * Every occurrence of a chunk in a file chunk list holds one reference. Chunks the index does not know,
+ * such as those stored before it existed, count as referenced once. Changes are appended to a local log,
+ * which is compacted into a snapshot on startup:
+ * <pre>
+ * add &lt;chunk id&gt; &lt;sha-256&gt; [references]
+ * ref &lt;chunk id&gt; &lt;delta&gt;
+ * </pre>
+ */
+@Slf4j
+public final class ChunkIndex implements AutoCloseable {
+    private final Path path;
+    private final Map<String, Long> chunksByHash = new HashMap<>();
+    private final Map<Long, String> hashes = new HashMap<>();
+    private final Map<Long, Integer> references = new HashMap<>();
+    private FileChannel channel;
+
+    public ChunkIndex(Path path) throws IOException {
+        this.path = path.toAbsolutePath();
+        Files.createDirectories(this.path.getParent());
+        if (Files.exists(this.path)) {
+            load();
+        }
+        writeSnapshot();
+        this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Takes a reference to a stored chunk with the given content.
+     *
+     * @return the chunk id, or {@code null} if no such chunk is stored
+     */
+    public synchronized Long share(String hash) throws IOException {
+        Long chunkId = chunksByHash.get(hash);
+        if (chunkId != null) {
+            retain(new long[]{chunkId});
+        }
+        return chunkId;
+    }
+
+    /**
+     * Records a newly uploaded chunk with a single reference.
+     */
+    public synchronized void register(String hash, long chunkId) throws IOException {
+        references.put(chunkId, 1);
+        hashes.put(chunkId, hash);
+        chunksByHash.putIfAbsent(hash, chunkId);
+        append("add " + chunkId + " " + hash);
+    }
+
+    /**
+     * Takes one more reference to each chunk.
+     */
+    public synchronized void retain(long[] chunks) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (long chunk : chunks) {
+            references.merge(chunk, 2, (count, ignored) -> count + 1);
+            lines.append(lines.isEmpty() ? "" : "\n").append("ref ").append(chunk).append(" 1");
+        }
+        if (!lines.isEmpty()) {
+            append(lines.toString());
+        }
+    }
+
+    /**
+     * Drops one reference to each chunk.
+     *
+     * @return chunks nothing refers to anymore, whose messages can be deleted
+     */
+    public synchronized long[] release(long[] chunks) throws IOException {
+        long[] unused = new long[chunks.length];
+        int count = 0;
+        StringBuilder lines = new StringBuilder();
+        for (long chunk : chunks) {
+            Integer referenceCount = references.get(chunk);
+            if (referenceCount != null && referenceCount > 1) {
+                references.put(chunk, referenceCount - 1);
+                lines.append(lines.isEmpty() ? "" : "\n").append("ref ").append(chunk).append(" -1");
+                continue;
+            }
+            if (referenceCount != null) {
+                forget(chunk);
+                lines.append(lines.isEmpty() ? "" : "\n").append("ref ").append(chunk).append(" -1");
+            }
+            unused[count++] = chunk;
+        }
+        if (!lines.isEmpty()) {
+            append(lines.toString());
+        }
+        return Arrays.copyOf(unused, count);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void forget(long chunk) {
+        references.remove(chunk);
+        String hash = hashes.remove(chunk);
+        if (hash != null) {
+            chunksByHash.remove(hash, chunk);
+        }
+    }
+
+    private void append(String lines) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((lines + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+    }
+
+    private void load() throws IOException {
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            try {
+                long chunk = Long.parseLong(fields[1]);
+                switch (fields[0]) {
+                    case "add" -> {
+                        references.put(chunk, fields.length > 3 ? Integer.parseInt(fields[3]) : 1);
+                        hashes.put(chunk, fields[2]);
+                        chunksByHash.putIfAbsent(fields[2], chunk);
+                    }
+                    case "ref" -> {
+                        int count = references.getOrDefault(chunk, 1) + Integer.parseInt(fields[2]);
+                        if (count > 0) {
+                            references.put(chunk, count);
+                        } else {
+                            forget(chunk);
+                        }
+                    }
+                    default -> log.warn("Skipping unknown chunk index entry: {}", line);
+                }
+            } catch (RuntimeException e) {
+                // A torn tail line is what a crash in the middle of an append leaves behind.
+                log.warn("Skipping unreadable chunk index entry: {}", line);
+            }
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        StringBuilder snapshot = new StringBuilder();
+        references.forEach((chunk, count) -> {
+            String hash = hashes.get(chunk);
+            if (hash != null) {
+                snapshot.append("add ").append(chunk).append(' ').append(hash).append(' ').append(count).append('\n');
+            } else if (count > 1) {
+                snapshot.append("ref ").append(chunk).append(' ').append(count - 1).append('\n');
+            }
+        });
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel target = FileChannel.open(
+            temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            ByteBuffer bytes = ByteBuffer.wrap(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                target.write(bytes);
+            }
+            target.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,588 @@
+package ru.tgfs.backend.services.tdlight;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import it.tdlight.jni.TdApi;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.tgfs.backend.configurations.TelegramConfig;
+import ru.tgfs.backend.exceptions.StorageException;
+
+/**
+ * Moves files between the local disk and chunk messages of the storage chat.
+ * <p>
+ * Every chunk except the last one has the size recorded in the filesystem manifest. Chunks are uploaded and
+ * downloaded by a fixed pool of workers, sized per storage account; an upload never keeps more staged chunks on
+ * disk than there are workers. New chunks go to the least loaded account, and every chunk is read through the
+ * account owning it.
+ */
+@Slf4j
+public class ChunkTransfer implements AutoCloseable {
+    private static final int RANGE_ATTEMPTS = 8;
+    /**
+     * TDLib downloads files with a higher priority first; prefetching must not delay requested reads.
+     */
+    private static final int READ_PRIORITY = 16;
+    private static final int PREFETCH_PRIORITY = 1;
+    private static final int MAX_PREFETCHED_RANGES = 1024;
+
+    private final TgfsApplication app;
+    private final TelegramConfig.Transfer config;
+    private final DownloadCache cache;
+    private final int parallelism;
+    private final ExecutorService workers;
+    private final Counter uploadedBytes;
+    private final Counter downloadedBytes;
+    private final Counter sharedChunks;
+    /**
+     * Range of every chunk last requested by a prefetch. TDLib keeps a single download range per file, so
+     * a read inside it must not narrow it down.
+     */
+    private final Map<Long, long[]> prefetchedRanges = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > MAX_PREFETCHED_RANGES;
+        }
+    };
+
+    public ChunkTransfer(TgfsApplication app, TelegramConfig.Transfer config, DownloadCache cache) {
+        this.app = app;
+        this.config = config;
+        this.cache = cache;
+        // The pool bounds the number of concurrent transfers; its threads only wait for TDLib.
+        this.parallelism = config.getWorkers() * app.getAccounts().size();
+        this.workers = Executors.newFixedThreadPool(
+            parallelism, Thread.ofVirtual().name("chunk-transfer-", 1).factory());
+        this.uploadedBytes = Counter.builder("tgfs.transfer.bytes")
+                                    .baseUnit(BaseUnits.BYTES)
+                                    .tag("direction", "upload")
+                                    .register(app.getMeterRegistry());
+        this.downloadedBytes = Counter.builder("tgfs.transfer.bytes")
+                                      .baseUnit(BaseUnits.BYTES)
+                                      .tag("direction", "download")
+                                      .register(app.getMeterRegistry());
+        this.sharedChunks = Counter.builder("tgfs.transfer.chunks.shared")
+                                   .description("Chunks not uploaded because a chunk with the same contents is stored")
+                                   .register(app.getMeterRegistry());
+    }
+
+    /**
+     * Splits the input into chunks and uploads them as documents.
+     *
+     * @return message ids of the chunks in file order
+     */
+    @SneakyThrows
+    public long[] upload(String fileName, InputStream input, long chunkSize) {
+        List<CompletableFuture<Long>> uploads = new ArrayList<>();
+        Semaphore staged = new Semaphore(parallelism);
+
+        try (ReadableByteChannel source = Channels.newChannel(input)) {
+            for (int index = 0; ; index++) {
+                staged.acquire();
+                MessageDigest digest = newDigest();
+                Path chunk = StagingFiles.stage(chunkName(fileName, index), source, chunkSize, digest);
+                long size = Files.size(chunk);
+                if (size == 0 && index > 0) {
+                    StagingFiles.discard(chunk);
+                    break;
+                }
+
+                String hash = digest == null ? null : HexFormat.of().formatHex(digest.digest());
+                uploads.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Long shared = share(hash);
+                        return shared != null ? shared : storeNew(chunk, hash);
+                    } finally {
+                        StagingFiles.discard(chunk);
+                        staged.release();
+                    }
+                }, workers));
+
+                if (size < chunkSize) {
+                    break;
+                }
+            }
+            return join(uploads).stream().mapToLong(Long::longValue).toArray();
+        } catch (Exception e) {
+            discardUploaded(uploads);
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads the dirty blocks of a file as new chunks. Blocks are chunk-sized, so clean blocks keep their
+     * current chunk messages.
+     *
+     * @return message ids of the file chunks after the rewrite
+     */
+    @SneakyThrows
+    public long[] rewrite(String fileName, long[] chunks, FileChannel contents, BitSet dirtyBlocks, long chunkSize) {
+        long size = contents.size();
+        int blockCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        long[] result = Arrays.copyOf(chunks, blockCount);
+        List<Integer> blocks = new ArrayList<>();
+        List<CompletableFuture<Long>> uploads = new ArrayList<>();
+
+        try {
+            for (int block = 0; block < blockCount; block++) {
+                if (block < chunks.length && !dirtyBlocks.get(block)) {
+                    continue;
+                }
+                long start = block * chunkSize;
+                ByteBuffer slice = contents.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+                String name = chunkName(fileName, block);
+
+                blocks.add(block);
+                uploads.add(CompletableFuture.supplyAsync(() -> {
+                    Path chunk = null;
+                    try {
+                        String hash = hash(slice.duplicate());
+                        Long shared = share(hash);
+                        if (shared != null) {
+                            return shared;
+                        }
+                        chunk = StagingFiles.stage(name, slice);
+                        return storeNew(chunk, hash);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        if (chunk != null) {
+                            StagingFiles.discard(chunk);
+                        }
+                    }
+                }, workers));
+            }
+
+            List<Long> uploaded = join(uploads);
+            for (int i = 0; i < blocks.size(); i++) {
+                result[blocks.get(i)] = uploaded.get(i);
+            }
+            return result;
+        } catch (Exception e) {
+            discardUploaded(uploads);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts uploading one block of a file that is still being written. The block is copied into a staging file
+     * once a worker takes it up, so later writes to the block do not change what is uploaded.
+     *
+     * @return the chunk id of the block contents as they were copied
+     */
+    public CompletableFuture<Long> uploadBlock(String fileName, FileChannel contents, int block, long chunkSize) {
+        return CompletableFuture.supplyAsync(() -> {
+            MessageDigest digest = newDigest();
+            Path chunk = null;
+            try {
+                chunk = StagingFiles.stage(chunkName(fileName, block), contents, block * chunkSize, chunkSize, digest);
+                String hash = digest == null ? null : HexFormat.of().formatHex(digest.digest());
+                Long shared = share(hash);
+                return shared != null ? shared : storeNew(chunk, hash);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (chunk != null) {
+                    StagingFiles.discard(chunk);
+                }
+            }
+        }, workers);
+    }
+
+    /**
+     * Releases the chunk of a block upload whose result is not used, once the upload is done.
+     */
+    public void discardUpload(CompletableFuture<Long> upload) {
+        upload.thenAccept(chunk -> app.releaseChunks(new long[]{chunk}))
+              .whenComplete((ignored, e) -> {
+                  if (e != null) {
+                      log.debug("Discarded block upload failed", e);
+                  }
+              });
+    }
+
+    /**
+     * Downloads the chunks of a file. A file of several chunks is assembled into a single local file, which
+     * is reused as long as the chunks stay the same.
+     *
+     * @return lease of the local file, which has to be closed once the file is read
+     */
+    @SneakyThrows
+    public DownloadCache.Lease download(long[] messageIds, String fileName) {
+        List<CompletableFuture<DownloadCache.Lease>> downloads = new ArrayList<>(messageIds.length);
+        for (long messageId : messageIds) {
+            downloads.add(CompletableFuture.supplyAsync(() -> downloadChunk(messageId), workers));
+        }
+        List<DownloadCache.Lease> chunks;
+        try {
+            chunks = join(downloads);
+        } catch (Throwable e) {
+            // Chunks downloaded before one failed are not read.
+            downloads.forEach(download -> download.thenAccept(DownloadCache.Lease::close));
+            throw e;
+        }
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+
+        try {
+            Path directory = config.getAssembledDirectory().resolve(assembledKey(messageIds));
+            Path assembled = directory.resolve(Path.of(fileName).getFileName().toString());
+            DownloadCache.Lease cached = cache.touchAssembled(assembled, messageIds);
+            if (cached != null) {
+                return cached;
+            }
+
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "assemble", ".tmp");
+            try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                for (DownloadCache.Lease chunk : chunks) {
+                    try (FileChannel source = FileChannel.open(chunk.path(), StandardOpenOption.READ)) {
+                        long position = 0;
+                        long size = source.size();
+                        while (position < size) {
+                            position += source.transferTo(position, size - position, target);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            Files.move(temporary, assembled, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return cache.acquireAssembled(assembled, messageIds);
+        } finally {
+            chunks.forEach(DownloadCache.Lease::close);
+        }
+    }
+
+    /**
+     * Offsets of the chunks of a file. Chunks are chunk-sized except the last one, apart from files stored
+     * before files were split into chunks, whose messages have sizes of their own and are looked up.
+     *
+     * @param size size of the file, or -1 if it is unknown
+     * @return offset of every chunk within the file, followed by the end of the file
+     */
+    public long[] chunkStarts(long[] messageIds, long chunkSize, long size) {
+        long[] starts = new long[messageIds.length + 1];
+        boolean uniform = size >= 0 && messageIds.length == Math.max(1, (size + chunkSize - 1) / chunkSize);
+        for (int index = 0; index < messageIds.length; index++) {
+            long chunkLength = uniform
+                               ? Math.min(chunkSize, size - index * chunkSize)
+                               : chunkFile(app.account(messageIds[index]), messageIds[index]).size;
+            starts[index + 1] = starts[index] + chunkLength;
+        }
+        return starts;
+    }
+
+    /**
+     * Reads a window of a file, downloading only the parts of the chunks it covers.
+     *
+     * @param starts offsets of the chunks, see {@link #chunkStarts}
+     * @return the bytes of the window, shorter than {@code length} if it extends past the end of the file
+     */
+    @SneakyThrows
+    public byte[] read(long[] messageIds, long[] starts, long offset, int length) {
+        List<CompletableFuture<byte[]>> parts = new ArrayList<>();
+        forEachPart(messageIds, starts, offset, length, (messageId, start, partLength) -> parts.add(
+            CompletableFuture.supplyAsync(() -> readChunk(messageId, start, (int) partLength), workers)));
+
+        List<byte[]> results = join(parts);
+        byte[] window = new byte[results.stream().mapToInt(part -> part.length).sum()];
+        int position = 0;
+        for (byte[] part : results) {
+            System.arraycopy(part, 0, window, position, part.length);
+            position += part.length;
+        }
+        return window;
+    }
+
+    /**
+     * Starts background downloads of a file window with low priority, without waiting for them.
+     *
+     * @param starts offsets of the chunks, see {@link #chunkStarts}
+     */
+    public void prefetch(long[] messageIds, long[] starts, long offset, long length) {
+        forEachPart(messageIds, starts, offset, length, (chunkId, start, partLength) -> {
+            StorageAccount account = app.account(chunkId);
+
+            var messageRequest = new TdApi.GetMessage(account.getChatId(), StorageAccount.messageId(chunkId));
+
+            account.background(messageRequest).thenCompose(message -> {
+                if (!(message.content instanceof TdApi.MessageDocument messageDocument)
+                    || messageDocument.document.document.local.isDownloadingCompleted
+                    || start >= messageDocument.document.document.size) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                var downloadRequest = new TdApi.DownloadFile();
+                downloadRequest.fileId = messageDocument.document.document.id;
+                downloadRequest.priority = PREFETCH_PRIORITY;
+                downloadRequest.offset = start;
+                downloadRequest.limit = partLength;
+                downloadRequest.synchronous = false;
+                synchronized (prefetchedRanges) {
+                    prefetchedRanges.put(chunkId, new long[]{start, start + partLength});
+                }
+                cache.putPrefetch(chunkId, messageDocument.document.document, partLength);
+                return account.background(downloadRequest);
+            }).whenComplete((file, e) -> {
+                if (e != null) {
+                    log.debug("Prefetch of chunk {} failed", chunkId, e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Calls the action with the part of every chunk a window of the file covers, in file order.
+     */
+    private static void forEachPart(long[] messageIds, long[] starts, long offset, long length, PartAction action) {
+        long end = Math.min(offset + length, starts[messageIds.length]);
+        if (length <= 0 || offset >= end) {
+            return;
+        }
+        int index = Arrays.binarySearch(starts, 0, messageIds.length, offset);
+        index = index >= 0 ? index : -index - 2;
+        for (; index < messageIds.length && starts[index] < end; index++) {
+            long start = Math.max(offset, starts[index]) - starts[index];
+            long partLength = Math.min(end, starts[index + 1]) - starts[index] - start;
+            if (partLength > 0) {
+                action.accept(messageIds[index], start, partLength);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface PartAction {
+        void accept(long chunkId, long start, long length);
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Takes a reference to a stored chunk with the same content, if deduplication is enabled.
+     *
+     * @return the chunk id, or {@code null} if the chunk has to be uploaded
+     */
+    @SneakyThrows
+    private Long share(String hash) {
+        Long shared = hash == null ? null : app.getChunkIndex().share(hash);
+        if (shared != null) {
+            sharedChunks.increment();
+        }
+        return shared;
+    }
+
+    @SneakyThrows
+    private long storeNew(Path chunk, String hash) {
+        long chunkId = uploadChunk(chunk);
+        if (hash != null) {
+            app.getChunkIndex().register(hash, chunkId);
+        }
+        return chunkId;
+    }
+
+    /**
+     * @return name of the directory a file assembled from these chunks is kept in
+     */
+    @SneakyThrows
+    private static String assembledKey(long[] messageIds) {
+        ByteBuffer ids = ByteBuffer.allocate(messageIds.length * Long.BYTES);
+        ids.asLongBuffer().put(messageIds);
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(ids.array()));
+    }
+
+    @SneakyThrows
+    private MessageDigest newDigest() {
+        return config.isDeduplicate() ? MessageDigest.getInstance("SHA-256") : null;
+    }
+
+    private String hash(ByteBuffer contents) {
+        MessageDigest digest = newDigest();
+        if (digest == null) {
+            return null;
+        }
+        digest.update(contents);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return chunk id of the uploaded chunk
+     */
+    private long uploadChunk(Path chunk) {
+        StorageAccount account = app.placeChunk();
+        var req = new TdApi.SendMessage();
+        req.chatId = account.getChatId();
+        var document = new TdApi.InputMessageDocument();
+        document.document = new TdApi.InputFileLocal(chunk.toString());
+        req.inputMessageContent = document;
+
+        account.getActiveUploads().incrementAndGet();
+        try {
+            long chunkId = account.chunkId(account.sendMessage(req).id);
+            uploadedBytes.increment(chunk.toFile().length());
+            return chunkId;
+        } finally {
+            account.getActiveUploads().decrementAndGet();
+        }
+    }
+
+    private DownloadCache.Lease downloadChunk(long chunkId) {
+        StorageAccount account = app.account(chunkId);
+        TdApi.File file = chunkFile(account, chunkId);
+        boolean local = file.local.isDownloadingCompleted;
+        if (local) {
+            cache.recordHit();
+        } else {
+            cache.recordMiss();
+        }
+
+        var downloadRequest = new TdApi.DownloadFile();
+        downloadRequest.fileId = file.id;
+        downloadRequest.priority = READ_PRIORITY;
+        downloadRequest.offset = 0;
+        downloadRequest.limit = 0;
+        downloadRequest.synchronous = true;
+        TdApi.File downloaded = account.transfer(downloadRequest);
+        if (!local) {
+            downloadedBytes.increment(downloaded.size);
+        }
+        return cache.acquireChunk(chunkId, downloaded);
+    }
+
+    /**
+     * Downloads a part of a chunk and reads it from the partially downloaded local file. A synchronous
+     * download returns early when another request for the same file changes the range, so the downloaded
+     * prefix is checked and the request repeated if needed.
+     */
+    @SneakyThrows
+    private byte[] readChunk(long chunkId, long offset, int length) {
+        StorageAccount account = app.account(chunkId);
+        TdApi.File file = chunkFile(account, chunkId);
+        length = (int) Math.max(0, Math.min(length, file.size - offset));
+        if (length == 0) {
+            return new byte[0];
+        }
+        if (!file.local.path.isEmpty() && downloadedPrefix(account, file.id, offset) >= length) {
+            cache.recordHit();
+            try (DownloadCache.Lease lease = cache.acquireChunk(chunkId, file)) {
+                return readLocal(lease.path(), offset, length);
+            }
+        }
+
+        cache.recordMiss();
+        for (int attempt = 0; attempt < RANGE_ATTEMPTS; attempt++) {
+            var downloadRequest = new TdApi.DownloadFile();
+            downloadRequest.fileId = file.id;
+            downloadRequest.priority = READ_PRIORITY;
+            downloadRequest.offset = offset;
+            downloadRequest.limit = downloadLimit(chunkId, offset, length);
+            downloadRequest.synchronous = true;
+            TdApi.File local = account.transfer(downloadRequest);
+
+            if (local.local.isDownloadingCompleted || downloadedPrefix(account, file.id, offset) >= length) {
+                downloadedBytes.increment(length);
+                try (DownloadCache.Lease lease = cache.acquireChunk(chunkId, local)) {
+                    return readLocal(lease.path(), offset, length);
+                }
+            }
+        }
+        throw new StorageException("Could not download range of chunk: " + chunkId);
+    }
+
+    /**
+     * @return length of the range to download for a read, extended to the end of a prefetch covering it
+     */
+    private long downloadLimit(long chunkId, long offset, int length) {
+        long[] prefetched;
+        synchronized (prefetchedRanges) {
+            prefetched = prefetchedRanges.get(chunkId);
+        }
+        if (prefetched == null || offset < prefetched[0] || offset >= prefetched[1]) {
+            return length;
+        }
+        return Math.max(length, prefetched[1] - offset);
+    }
+
+    private static long downloadedPrefix(StorageAccount account, int fileId, long offset) {
+        return account.call(new TdApi.GetFileDownloadedPrefixSize(fileId, offset)).size;
+    }
+
+    private static TdApi.File chunkFile(StorageAccount account, long chunkId) {
+        var message = account.call(new TdApi.GetMessage(account.getChatId(), StorageAccount.messageId(chunkId)));
+        if (!(message.content instanceof TdApi.MessageDocument messageDocument)) {
+            throw new StorageException("Message is not a file chunk: " + chunkId);
+        }
+        return messageDocument.document.document;
+    }
+
+    private static byte[] readLocal(Path path, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int read = 0;
+            while (buffer.hasRemaining() && read >= 0) {
+                read = channel.read(buffer, offset + buffer.position());
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void discardUploaded(List<CompletableFuture<Long>> uploads) {
+        long[] uploaded = uploads.stream()
+                                 .map(upload -> upload.exceptionally(e -> null).join())
+                                 .filter(id -> id != null)
+                                 .mapToLong(Long::longValue)
+                                 .toArray();
+        if (uploaded.length == 0) {
+            return;
+        }
+        try {
+            app.releaseChunks(uploaded);
+        } catch (Exception e) {
+            log.warn("Could not release chunks of a failed upload", e);
+        }
+    }
+
+    private static String chunkName(String fileName, int index) {
+        return index == 0 ? fileName : fileName + ".part" + index;
+    }
+
+    private static <T> List<T> join(List<CompletableFuture<T>> futures) throws Throwable {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException io ? io.getCause() : e.getCause();
+        }
+        return results;
+    }
+}
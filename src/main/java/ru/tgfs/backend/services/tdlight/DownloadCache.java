@@ -0,0 +1,269 @@
+package ru.tgfs.backend.services.tdlight;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import it.tdlight.jni.TdApi;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Keeps the local copies of downloaded chunks and assembled files within a byte budget.
+ * <p>
+ * Entries are evicted in least recently used order: chunk files through TDLib {@link TdApi.DeleteFile},
+ * assembled files by deleting them. Chunks that are replaced or deleted are invalidated right away. Files in use
+ * are held by a {@link Lease}, which keeps them from being deleted until it is closed; the cache may exceed its
+ * budget meanwhile.
+ */
+@Slf4j
+public class DownloadCache {
+    private final TgfsApplication app;
+    private final long budget;
+
+    private final Map<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Number of open leases by key.
+     */
+    private final Map<Object, Integer> pins = new HashMap<>();
+    /**
+     * Invalidated entries whose deletion waits for their leases to be closed.
+     */
+    private final Map<Object, Entry> retired = new HashMap<>();
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DownloadCache(TgfsApplication app, long budget, Path assembledDirectory) {
+        this.app = app;
+        this.budget = budget;
+        FunctionCounter.builder("tgfs.cache.requests", hits, AtomicLong::get)
+                       .description("Chunk reads served from a local copy")
+                       .tag("result", "hit")
+                       .register(app.getMeterRegistry());
+        FunctionCounter.builder("tgfs.cache.requests", misses, AtomicLong::get)
+                       .description("Chunk reads served from a local copy")
+                       .tag("result", "miss")
+                       .register(app.getMeterRegistry());
+        Gauge.builder("tgfs.cache.size", this, DownloadCache::getSize)
+             .baseUnit(BaseUnits.BYTES)
+             .register(app.getMeterRegistry());
+        // Assembled files of a previous run are not accounted for, so they are dropped.
+        FileSystemUtils.deleteRecursively(assembledDirectory.toFile());
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Records the local copy of a chunk, or marks it as recently used, and holds it until the lease is closed.
+     */
+    public Lease acquireChunk(long chunkId, TdApi.File file) {
+        Entry entry = new Entry(file.local.downloadedSize, chunkId, file.id, null, null);
+        return put(chunkId, entry, Path.of(file.local.path));
+    }
+
+    /**
+     * Records a chunk a prefetch started to download, counting the requested range as downloaded already so that
+     * prefetches stay within the budget.
+     */
+    public void putPrefetch(long chunkId, TdApi.File file, long length) {
+        long expected = Math.min(file.size, file.local.downloadedSize + length);
+        put(chunkId, new Entry(expected, chunkId, file.id, null, null), null);
+    }
+
+    public Lease acquireAssembled(Path path, long[] chunks) throws IOException {
+        return put(path, new Entry(Files.size(path), 0, 0, path, chunks), path);
+    }
+
+    /**
+     * Marks an assembled file as recently used and holds it until the lease is closed.
+     *
+     * @return the lease, or {@code null} if the file is not cached or was assembled from other chunks
+     */
+    public synchronized Lease touchAssembled(Path path, long[] chunks) {
+        Entry entry = entries.get(path);
+        if (entry == null || !Arrays.equals(entry.chunks(), chunks) || !Files.exists(path)) {
+            return null;
+        }
+        pins.merge(path, 1, Integer::sum);
+        return new Lease(path, path);
+    }
+
+    /**
+     * Drops the local copies of chunks whose messages were deleted, and of files assembled from them.
+     */
+    public void invalidate(long[] messageIds) {
+        List<Entry> removed = new ArrayList<>();
+        synchronized (this) {
+            for (long messageId : messageIds) {
+                removeEntry(messageId, removed);
+            }
+            for (Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Object, Entry> entry = it.next();
+                if (entry.getValue().assembled() != null && containsAny(entry.getValue().chunks(), messageIds)) {
+                    it.remove();
+                    retire(entry.getKey(), entry.getValue(), removed);
+                }
+            }
+        }
+        removed.forEach(this::evict);
+    }
+
+    /**
+     * Records an entry and, unless {@code path} is {@code null}, leases it before anything is evicted.
+     *
+     * @return the lease, or {@code null} if the entry is not leased
+     */
+    private Lease put(Object key, Entry entry, Path path) {
+        List<Entry> removed = new ArrayList<>();
+        try {
+            synchronized (this) {
+                Entry previous = entries.put(key, entry);
+                size += entry.size() - (previous == null ? 0 : previous.size());
+                if (path != null) {
+                    pins.merge(key, 1, Integer::sum);
+                }
+                trim(key, removed);
+                return path == null ? null : new Lease(key, path);
+            }
+        } finally {
+            removed.forEach(this::evict);
+        }
+    }
+
+    private void release(Object key) {
+        List<Entry> removed = new ArrayList<>();
+        synchronized (this) {
+            if (pins.merge(key, -1, Integer::sum) > 0) {
+                return;
+            }
+            pins.remove(key);
+            Entry entry = retired.remove(key);
+            if (entry != null) {
+                removed.add(entry);
+            }
+            trim(null, removed);
+        }
+        removed.forEach(this::evict);
+    }
+
+    /**
+     * Removes the least recently used entries that are not leased until the cache fits its budget.
+     *
+     * @param kept key of an entry to keep regardless
+     */
+    private void trim(Object kept, List<Entry> removed) {
+        for (Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator(); size > budget && it.hasNext(); ) {
+            Map.Entry<Object, Entry> oldest = it.next();
+            if (oldest.getKey().equals(kept) || pins.containsKey(oldest.getKey())) {
+                continue;
+            }
+            it.remove();
+            size -= oldest.getValue().size();
+            removed.add(oldest.getValue());
+        }
+    }
+
+    private void removeEntry(Object key, List<Entry> removed) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            retire(key, entry, removed);
+        }
+    }
+
+    /**
+     * Deletes a removed entry now, or once its leases are closed.
+     */
+    private void retire(Object key, Entry entry, List<Entry> removed) {
+        size -= entry.size();
+        if (pins.containsKey(key)) {
+            retired.put(key, entry);
+        } else {
+            removed.add(entry);
+        }
+    }
+
+    private void evict(Entry entry) {
+        if (entry.assembled() != null) {
+            try {
+                Files.deleteIfExists(entry.assembled());
+                Files.deleteIfExists(entry.assembled().getParent());
+            } catch (IOException e) {
+                log.warn("Could not delete assembled file {}", entry.assembled(), e);
+            }
+            return;
+        }
+        app.account(entry.chunkId()).background(new TdApi.DeleteFile(entry.fileId())).whenComplete((ok, e) -> {
+            if (e != null) {
+                log.warn("Could not delete cached file {}", entry.fileId(), e);
+            }
+        });
+    }
+
+    private static boolean containsAny(long[] chunks, long[] messageIds) {
+        for (long chunk : chunks) {
+            for (long messageId : messageIds) {
+                if (chunk == messageId) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Use of a local copy, which is not deleted until the lease is closed.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Object key;
+        private final Path path;
+        private boolean closed;
+
+        private Lease(Object key, Path path) {
+            this.key = key;
+            this.path = path;
+        }
+
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DownloadCache.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(key);
+        }
+    }
+
+    /**
+     * @param fileId TDLib file id of a chunk, only valid within the account owning the chunk
+     */
+    private record Entry(long size, long chunkId, int fileId, Path assembled, long[] chunks) {
+    }
+}
@@ -0,0 +1,215 @@
+package ru.tgfs.backend.services.tdlight;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local append-only log of metadata mutations that are not yet written to the pinned message.
+ * Every entry is forced to disk before {@link #append} returns, so the log survives a crash.
+ * <p>
+ * Entries are numbered in the order they are appended. The numbering continues across compactions, so the
+ * number of the last entry written to Telegram tells which entries are still to be replayed.
+ */
+@Slf4j
+public final class MetadataJournal implements AutoCloseable {
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private FileChannel channel;
+    private long sequence;
+
+    /**
+     * @param flushedSequence number of the last entry known to be written to Telegram; numbering continues
+     *                        after it even if the log itself is empty
+     */
+    public MetadataJournal(Path path, ObjectMapper objectMapper, long flushedSequence) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.objectMapper = objectMapper;
+        Files.createDirectories(this.path.getParent());
+        this.channel = open();
+        dropTornTail();
+        sequence = flushedSequence;
+        for (Entry entry : readAll()) {
+            sequence = Math.max(sequence, entry.sequence());
+        }
+    }
+
+    /**
+     * @return number given to the entry
+     */
+    public synchronized long append(Entry entry) throws IOException {
+        long number = sequence + 1;
+        ByteBuffer line = ByteBuffer.wrap(
+            (objectMapper.writeValueAsString(entry.withSequence(number)) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            channel.write(line);
+        }
+        channel.force(false);
+        sequence = number;
+        return number;
+    }
+
+    public synchronized long position() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return number of the last appended entry
+     */
+    public synchronized long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return entries appended after the one numbered {@code sequence}
+     */
+    public synchronized List<Entry> readAfter(long sequence) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : readAll()) {
+            if (entry.sequence() > sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public synchronized List<Entry> readAll() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                entries.add(objectMapper.readValue(line, Entry.class));
+            } catch (JsonProcessingException e) {
+                // A torn tail line is what a crash in the middle of an append leaves behind.
+                log.warn("Skipping unreadable metadata journal entry: {}", line);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Drops everything before {@code position}, keeping the entries appended after it.
+     */
+    public synchronized void compact(long position) throws IOException {
+        if (position >= channel.size()) {
+            channel.truncate(0);
+            channel.force(true);
+            return;
+        }
+
+        Path tail = path.resolveSibling(path.getFileName() + ".tmp");
+        try (
+            FileChannel source = FileChannel.open(path, StandardOpenOption.READ);
+            FileChannel tailChannel = FileChannel.open(
+                tail, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            long copied = 0;
+            long count = source.size() - position;
+            while (copied < count) {
+                copied += source.transferTo(position + copied, count - copied, tailChannel);
+            }
+            tailChannel.force(true);
+        }
+        channel.close();
+        Files.move(tail, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = open();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Cuts off a partially written last line, so the next append starts on a line of its own.
+     */
+    private void dropTornTail() throws IOException {
+        try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = source.size();
+            ByteBuffer single = ByteBuffer.allocate(1);
+            while (end > 0) {
+                single.clear();
+                source.read(single, end - 1);
+                if (single.get(0) == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < source.size()) {
+                log.warn("Dropping {} bytes of a torn metadata journal entry", source.size() - end);
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+        );
+    }
+
+    public enum Operation {
+        ADD,
+        DELETE,
+        RENAME,
+        REPLACE,
+        COPY
+    }
+
+    /**
+     * @param chunks   chunks of the file, or {@code null} if the entry describes a directory
+     * @param sequence number given by the journal
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Entry(
+        Operation operation,
+        String path,
+        long[] chunks,
+        Long size,
+        Integer modificationTime,
+        String newPath,
+        long sequence
+    ) {
+        public static Entry addFile(String path, long[] chunks, long size, int modificationTime) {
+            return new Entry(Operation.ADD, path, chunks, size, modificationTime, null, 0);
+        }
+
+        public static Entry addDirectory(String path) {
+            return new Entry(Operation.ADD, path, null, null, null, null, 0);
+        }
+
+        public static Entry delete(String path) {
+            return new Entry(Operation.DELETE, path, null, null, null, null, 0);
+        }
+
+        public static Entry rename(String path, String newPath) {
+            return new Entry(Operation.RENAME, path, null, null, null, newPath, 0);
+        }
+
+        public static Entry replace(String path, long[] chunks, long size, int modificationTime) {
+            return new Entry(Operation.REPLACE, path, chunks, size, modificationTime, null, 0);
+        }
+
+        public static Entry copy(String path, String newPath) {
+            return new Entry(Operation.COPY, path, null, null, null, newPath, 0);
+        }
+
+        public Entry withSequence(long sequence) {
+            return new Entry(operation, path, chunks, size, modificationTime, newPath, sequence);
+        }
+    }
+}
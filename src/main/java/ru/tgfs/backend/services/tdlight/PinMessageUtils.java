@@ -1,166 +1,989 @@
 package ru.tgfs.backend.services.tdlight;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
 import it.tdlight.jni.TdApi;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.tgfs.backend.configurations.TelegramConfig;
 import ru.tgfs.backend.exceptions.StorageException;
 import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
 import ru.tgfs.backend.exceptions.StorageNameAlreadyExistsException;
 import ru.tgfs.backend.models.NodeInfo;
+import ru.tgfs.backend.services.tdlight.MetadataJournal.Entry;
+import ru.tgfs.backend.services.tdlight.tree.FileSystemTree;
+import ru.tgfs.backend.services.tdlight.tree.ShardCodec;
 
-public class PinMessageUtils {
-    private Map<String, Object> fileSystemMap;
+/**
+ * Filesystem metadata kept in the storage chat and served from memory.
+ * <p>
+ * The pinned message is a small manifest pointing to the shards of the root directory. Every directory keeps
+ * its children in one or more shard messages, bucketed by child name hash; a subdirectory entry points to the
+ * subdirectory's own shards. Directories are read lazily on first access, and a mutation rewrites only the
+ * buckets it touched. A pinned message in the old single-tree format is migrated on startup.
+ * <p>
+ * Edits made outside this instance arrive as {@link TdApi.UpdateMessageContent} and reload the affected
+ * directory. In write-behind mode mutations are recorded in a {@link MetadataJournal} and written by a
+ * background flusher once per interval or after enough mutations have piled up. The manifest records the
+ * number of the last journal entry written, and only the entries after it are replayed on startup.
+ * <p>
+ * Lookups share a read lock and mutations take the write lock; a lookup that has to load a directory is
+ * retried under the write lock.
+ */
+@Slf4j
+public class PinMessageUtils implements AutoCloseable {
+    private static final String MANIFEST_MARKER = "$tgfs";
+    private static final int MANIFEST_VERSION = 2;
+    private static final int MAX_BUCKETS = 1 << 12;
+    private static final int RECENT_WRITES_LIMIT = 1024;
+
+    private FileSystemTree tree;
 
     private final TgfsApplication app;
     private final Long pinMessageId;
+    private final TelegramConfig.Metadata config;
+    private final ShardStore shardStore;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    /**
+     * Message id and text hash of our own writes whose content update has not arrived yet.
+     */
+    private final Set<Long> recentWrites = new LinkedHashSet<>();
+
+    private final Map<Integer, BitSet> dirtyBuckets = new HashMap<>();
+    /**
+     * Directories waiting for shard messages: new directories (target 1) and buckets being split.
+     */
+    private final Map<Integer, Integer> shardTargets = new HashMap<>();
+    private final List<Long> garbageShards = new ArrayList<>();
+    private final Map<Long, Integer> shardOwners = new HashMap<>();
+    private final Map<Long, Integer> shardHashes = new HashMap<>();
+    private long[] manifestShards;
+    /**
+     * Number of the last journal entry recorded in the manifest.
+     */
+    private long manifestSequence;
+    /**
+     * Number of the last journal entry this instance wrote to the shard messages.
+     */
+    private long flushedSequence;
+    private final long defaultChunkSize;
+    private long chunkSize;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private MetadataJournal journal;
+    private ScheduledExecutorService flusher;
+    private int dirtyCount;
+    /**
+     * Set while a flush requested by reaching the flush threshold waits to run.
+     */
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
     @SneakyThrows
-    public PinMessageUtils(TgfsApplication app) {
+    public PinMessageUtils(TgfsApplication app, TelegramConfig.Metadata config, long defaultChunkSize) {
         var getPinMessageRequest = new TdApi.GetChatPinnedMessage(app.getChatId());
         try {
-            app.getClient().send(getPinMessageRequest).get();
+            app.call(getPinMessageRequest);
         } catch (Exception e) {
             createPinMessage(app, app.getChatId());
         }
 
-        this.pinMessageId = app.getClient().send(getPinMessageRequest).get().id;
+        this.pinMessageId = app.call(getPinMessageRequest).id;
         this.app = app;
+        this.config = config;
+        this.defaultChunkSize = defaultChunkSize;
+        this.shardStore = new ShardStore(app);
+        Gauge.builder("tgfs.metadata.pending", this, utils -> utils.dirtyCount)
+             .description("Metadata changes not written to the shard messages yet")
+             .register(app.getMeterRegistry());
+
+        lock.writeLock().lock();
+        try {
+            loadTree(loadPinText());
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (!config.isWriteBehind()) {
+            if (hasPendingChanges()) {
+                flushNow();
+            }
+            return;
+        }
+
+        flushedSequence = manifestSequence;
+        journal = new MetadataJournal(config.getJournalPath(), objectMapper, flushedSequence);
+        lock.writeLock().lock();
+        try {
+            dirtyCount = replayJournal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pin-message-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = config.getFlushInterval().toMillis();
+        flusher.scheduleWithFixedDelay(this::flush, 0, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
+    public void onMessageContent(TdApi.UpdateMessageContent update) {
+        if (update.chatId != app.getChatId()) {
+            return;
+        }
+        if (!(update.newContent instanceof TdApi.MessageText messageText)) {
+            return;
+        }
+
+        if (journal == null) {
+            reloadChanged(update.messageId, messageText.text.text);
+        } else {
+            // On the flusher thread no batch is half written while the tree is reloaded.
+            try {
+                flusher.execute(() -> reloadChanged(update.messageId, messageText.text.text));
+            } catch (RejectedExecutionException e) {
+                log.debug("Ignoring change of message {} after close", update.messageId);
+            }
+        }
+    }
+
+    /**
+     * Reloads what another writer changed. Local changes not written yet are replayed on top, which needs the
+     * whole tree to be read again so that no change is applied twice.
+     */
     @SneakyThrows
-    public String readPinText() {
-        var readRequest = new TdApi.GetMessage(app.getChatId(), pinMessageId);
-        TdApi.MessageContent oldContent = app.getClient().send(readRequest).get().content;
-        String text = "";
-        if (oldContent instanceof TdApi.MessageText messageText) {
-            text = messageText.text.text;
+    private void reloadChanged(long messageId, String text) {
+        lock.writeLock().lock();
+        try {
+            if (recentWrites.remove(writeKey(messageId, text))) {
+                return;
+            }
+            boolean pending = journal != null && journal.sequence() > flushedSequence;
+
+            if (messageId == pinMessageId) {
+                loadTree(text);
+            } else {
+                Integer owner = shardOwners.get(messageId);
+                if (owner == null || !ownsShard(owner, messageId) || !tree.isLoaded(owner)) {
+                    return;
+                }
+                if (pending) {
+                    loadTree(loadPinText());
+                } else {
+                    tree.forEachChild(owner, (name, childId) -> forgetSubtree(childId, false));
+                    dirtyBuckets.remove(owner);
+                    tree.unload(owner);
+                }
+            }
+
+            if (pending) {
+                dirtyCount = replayJournal();
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        fileSystemMap = objectMapper.readValue(text, Map.class);
-        return text;
+    /**
+     * Size of every chunk of a file except the last one.
+     */
+    public long getChunkSize() {
+        return read(() -> chunkSize);
     }
 
     public NodeInfo getInfo(String path) {
-        readPinText();
+        return read(() -> {
+            int id = tree.lookup(path);
+            if (id == FileSystemTree.NOT_FOUND) {
+                throw new StorageFileNotFoundException("Path not found: " + path);
+            }
+            if (tree.isDirectory(id)) {
+                return new NodeInfo(path, true, List.of(), 0, 0);
+            }
+            return new NodeInfo(path, false, Arrays.stream(tree.chunks(id)).boxed().toList(),
+                                tree.fileSize(id), tree.modificationTime(id));
+        });
+    }
+
+    /**
+     * Adds a file made of the given chunk messages.
+     */
+    public void addFile(String path, long[] chunks, long size, int modificationTime) {
+        mutate(Entry.addFile(path, chunks, size, modificationTime));
+    }
+
+    public void addDirectory(String path) {
+        mutate(Entry.addDirectory(path));
+    }
+
+    public void replaceChunks(String path, long[] chunks, long size, int modificationTime) {
+        mutate(Entry.replace(path, chunks, size, modificationTime));
+    }
 
-        var entry = traversePath(path);
-        var currentMap = entry.getKey();
-        var nodeName = entry.getValue();
-        if (nodeName.isBlank()) {
-            return new NodeInfo(path, true, null);
+    /**
+     * Records size and modification time of a file stored without them, unless its chunks changed meanwhile.
+     */
+    public void recordAttributes(String path, long[] chunks, long size, int modificationTime) {
+        mutate(Entry.replace(path, chunks, size, modificationTime), () -> {
+            int id = tree.lookup(path);
+            return id != FileSystemTree.NOT_FOUND && !tree.isDirectory(id) && Arrays.equals(tree.chunks(id), chunks);
+        });
+    }
+
+    public List<String> listNamesByPath(String path) {
+        return read(() -> {
+            int id = tree.lookup(path);
+            if (id == FileSystemTree.NOT_FOUND) {
+                throw new StorageFileNotFoundException("Path not found: " + path);
+            }
+            if (!tree.isDirectory(id)) {
+                throw new StorageException("Can not list regular file: " + path);
+            }
+            return tree.childNames(id);
+        });
+    }
+
+    /**
+     * @return the children of a directory
+     */
+    public List<NodeInfo> listInfosByPath(String path) {
+        return read(() -> {
+            int id = tree.lookup(path);
+            if (id == FileSystemTree.NOT_FOUND) {
+                throw new StorageFileNotFoundException("Path not found: " + path);
+            }
+            if (!tree.isDirectory(id)) {
+                throw new StorageException("Can not list regular file: " + path);
+            }
+
+            String prefix = path.endsWith("/") ? path : path + "/";
+            List<NodeInfo> infos = new ArrayList<>(tree.childCount(id));
+            tree.forEachChild(id, (name, childId) -> {
+                if (tree.isDirectory(childId)) {
+                    infos.add(new NodeInfo(prefix + name, true, List.of(), 0, 0));
+                } else {
+                    infos.add(new NodeInfo(prefix + name, false, Arrays.stream(tree.chunks(childId)).boxed().toList(),
+                                           tree.fileSize(childId), tree.modificationTime(childId)));
+                }
+            });
+            return infos;
+        });
+    }
+
+    /**
+     * Deletes a file or a whole directory tree.
+     *
+     * @return chunks of the deleted files, whose references the caller releases
+     */
+    public long[] deletePath(String path) {
+        AtomicReference<long[]> deleted = new AtomicReference<>(new long[0]);
+        mutate(Entry.delete(path), () -> {
+            int id = tree.lookup(path);
+            if (id != FileSystemTree.NOT_FOUND) {
+                List<Long> chunks = new ArrayList<>();
+                tree.collectMessageIds(id, chunks::add);
+                deleted.set(chunks.stream().mapToLong(Long::longValue).toArray());
+            }
+            return true;
+        });
+        return deleted.get();
+    }
+
+    /**
+     * Copies a file or a whole directory tree. The copy refers to the same chunks as the original, which take
+     * one more reference each before the copy is made. A file copied onto an existing file replaces it.
+     *
+     * @return chunks of the replaced file, whose references the caller releases
+     */
+    @SneakyThrows
+    public long[] copyPath(String path, String newPath, ChunkIndex chunkIndex) {
+        AtomicReference<long[]> retained = new AtomicReference<>();
+        AtomicReference<long[]> replaced = new AtomicReference<>(new long[0]);
+        try {
+            mutate(Entry.copy(path, newPath), () -> {
+                int id = tree.lookup(path);
+                if (id == FileSystemTree.NOT_FOUND) {
+                    throw new StorageFileNotFoundException("Path not found: " + path);
+                }
+                int targetId = tree.lookup(newPath);
+                if (targetId != FileSystemTree.NOT_FOUND && !tree.isDirectory(id) && !tree.isDirectory(targetId)) {
+                    replaced.set(tree.chunks(targetId));
+                }
+                List<Long> chunks = new ArrayList<>();
+                tree.collectMessageIds(id, chunks::add);
+                retained.set(retain(chunkIndex, chunks.stream().mapToLong(Long::longValue).toArray()));
+                return true;
+            });
+        } catch (RuntimeException e) {
+            if (retained.get() != null) {
+                chunkIndex.release(retained.get());
+            }
+            throw e;
         }
+        return replaced.get();
+    }
 
-        if (!currentMap.containsKey(nodeName)) {
-            throw new StorageFileNotFoundException("Path not found: " + path);
+    /**
+     * Moves a file or a whole directory tree. A file moved onto an existing file replaces it within the same
+     * metadata change; a move onto an existing directory, or of a directory onto a file, is rejected.
+     *
+     * @return chunks of the replaced file, whose references the caller releases
+     */
+    public long[] movePath(String oldPath, String newPath) {
+        AtomicReference<long[]> replaced = new AtomicReference<>(new long[0]);
+        mutate(Entry.rename(oldPath, newPath), () -> {
+            int id = tree.lookup(oldPath);
+            int targetId = tree.lookup(newPath);
+            if (id != FileSystemTree.NOT_FOUND && targetId != FileSystemTree.NOT_FOUND && id != targetId
+                && !tree.isDirectory(id) && !tree.isDirectory(targetId)) {
+                replaced.set(tree.chunks(targetId));
+            }
+            return true;
+        });
+        return replaced.get();
+    }
+
+    /**
+     * @return whether both paths name the same existing node, such as {@code /a} and {@code /a/}
+     */
+    public boolean isSameNode(String path, String otherPath) {
+        return read(() -> {
+            int id = tree.lookup(path);
+            return id != FileSystemTree.NOT_FOUND && id == tree.lookup(otherPath);
+        });
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (flusher == null) {
+            return;
         }
+        flusher.shutdown();
+        flusher.awaitTermination(1, TimeUnit.MINUTES);
+        flush();
+        journal.close();
+    }
 
-        var end = currentMap.get(nodeName);
-        if (end instanceof Integer intValue) {
-            return new NodeInfo(path, false, intValue.longValue());
+    /**
+     * Runs a read-only action under the read lock. An action that runs into a directory that still has to
+     * be loaded is repeated under the write lock.
+     */
+    private <T> T read(Supplier<T> action) {
+        lock.readLock().lock();
+        try {
+            return action.get();
+        } catch (LoadRequiresWriteLock e) {
+            // Falls through to the write lock below.
+        } finally {
+            lock.readLock().unlock();
         }
-        if (end instanceof Long longValue) {
-            return new NodeInfo(path, false, longValue);
+
+        lock.writeLock().lock();
+        try {
+            return action.get();
+        } finally {
+            lock.writeLock().unlock();
         }
-        return new NodeInfo(path, true, null);
     }
 
-    public void addPath(String path, Long messageId) {
-        String text = readPinText();
+    private void mutate(Entry entry) {
+        mutate(entry, () -> true);
+    }
 
-        var entry = traversePath(path);
-        var currentMap = entry.getKey();
-        var appendPath = entry.getValue();
+    /**
+     * @param precondition checked under the write lock; the entry is dropped if it does not hold
+     */
+    @SneakyThrows
+    private void mutate(Entry entry, BooleanSupplier precondition) {
+        lock.writeLock().lock();
+        try {
+            if (!precondition.getAsBoolean()) {
+                return;
+            }
+            if (journal != null) {
+                // Logged before the tree changes, so a failed append leaves no change behind. An entry that then
+                // fails to apply leaves the tree as it was, and fails the same way when replayed.
+                journal.append(entry);
+                if (apply(entry) && ++dirtyCount >= config.getFlushThreshold() && flushQueued.compareAndSet(false, true)) {
+                    flusher.execute(this::flush);
+                }
+                return;
+            }
+            if (!apply(entry)) {
+                return;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
 
-        if (currentMap.containsKey(appendPath)) {
+        flushNow();
+    }
+
+    /**
+     * @return whether the tree was changed
+     */
+    private boolean apply(Entry entry) {
+        return switch (entry.operation()) {
+            case ADD -> applyAdd(entry);
+            case DELETE -> applyDelete(entry.path());
+            case RENAME -> applyRename(entry.path(), entry.newPath());
+            case REPLACE -> applyReplace(entry);
+            case COPY -> applyCopy(entry.path(), entry.newPath());
+        };
+    }
+
+    private boolean applyAdd(Entry entry) {
+        String path = entry.path();
+        long[] chunks = entry.chunks();
+        int parentId = tree.lookupParent(path);
+        String name = FileSystemTree.fileName(path);
+
+        if (name.isEmpty() || tree.child(parentId, name) != FileSystemTree.NOT_FOUND) {
             throw new StorageNameAlreadyExistsException("Path already exists: " + path);
         }
-        currentMap.put(appendPath, Objects.requireNonNullElseGet(messageId, HashMap::new));
+        int id = chunks == null ? tree.createDirectory() : createFile(entry, chunks);
+        tree.link(parentId, name, id);
 
-        changePinText();
+        if (chunks == null) {
+            shardTargets.put(id, 1);
+        }
+        markDirty(parentId, name);
+        return true;
     }
 
-    public List<String> listNamesByPath(String path) {
-        String text = readPinText();
+    private boolean applyDelete(String path) {
+        int parentId = tree.lookupParent(path);
+        String name = FileSystemTree.fileName(path);
+
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("You can't delete filesystem root directory.");
+        }
+
+        int id = tree.unlink(parentId, name);
+        if (id == FileSystemTree.NOT_FOUND) {
+            return false;
+        }
+        forgetSubtree(id, true);
+        tree.release(id);
+        markDirty(parentId, name);
+        return true;
+    }
+
+    private boolean applyRename(String oldPath, String newPath) {
+        int oldParentId = tree.lookupParent(oldPath);
+        String oldName = FileSystemTree.fileName(oldPath);
+        int newParentId = tree.lookupParent(newPath);
+        String newName = FileSystemTree.fileName(newPath);
+
+        int id = oldName.isEmpty() ? FileSystemTree.ROOT : tree.child(oldParentId, oldName);
+        if (id == FileSystemTree.NOT_FOUND) {
+            throw new StorageFileNotFoundException("Path not found: " + oldPath);
+        }
+        int targetId = newName.isEmpty() ? FileSystemTree.ROOT : tree.child(newParentId, newName);
+        if (targetId == id) {
+            // The same node under another spelling of its path.
+            return false;
+        }
+        if (isWithin(newParentId, id)) {
+            throw new StorageException("Can not move directory into itself: " + oldPath);
+        }
+        if (targetId != FileSystemTree.NOT_FOUND) {
+            if (tree.isDirectory(id) || tree.isDirectory(targetId)) {
+                throw new StorageNameAlreadyExistsException("Path already exists: " + newPath);
+            }
+            // A file moved onto a file replaces it.
+            tree.unlink(newParentId, newName);
+            tree.release(targetId);
+        }
+
+        tree.unlink(oldParentId, oldName);
+        tree.link(newParentId, newName, id);
+        markDirty(oldParentId, oldName);
+        markDirty(newParentId, newName);
+        return true;
+    }
+
+    /**
+     * @return whether the directory is the given node or lies below it
+     */
+    private boolean isWithin(int directoryId, int ancestorId) {
+        for (int id = directoryId; id != FileSystemTree.NOT_FOUND; id = tree.parent(id)) {
+            if (id == ancestorId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean applyCopy(String path, String newPath) {
+        if (newPath.equals(path) || newPath.startsWith(path + "/")) {
+            throw new StorageException("Can not copy into itself: " + path);
+        }
 
-        var entry = traversePath(path);
-        if (entry.getValue().isBlank()) {
-            return entry.getKey().keySet().stream().toList();
+        int id = tree.lookup(path);
+        if (id == FileSystemTree.NOT_FOUND) {
+            throw new StorageFileNotFoundException("Path not found: " + path);
         }
-        if (entry.getKey().get(entry.getValue()) instanceof Map<?, ?> map) {
-            return ((Map<String, Object>) map).keySet().stream().toList();
+        int newParentId = tree.lookupParent(newPath);
+        String newName = FileSystemTree.fileName(newPath);
+        int targetId = newName.isEmpty() ? FileSystemTree.ROOT : tree.child(newParentId, newName);
+        if (targetId != FileSystemTree.NOT_FOUND && (tree.isDirectory(id) || tree.isDirectory(targetId))) {
+            throw new StorageNameAlreadyExistsException("Path already exists: " + newPath);
         }
 
-        throw new StorageException("Can not list regular file: " + path);
+        int copyId = copySubtree(id);
+        if (targetId != FileSystemTree.NOT_FOUND) {
+            // A file copied onto a file replaces it.
+            tree.unlink(newParentId, newName);
+            tree.release(targetId);
+        }
+        tree.link(newParentId, newName, copyId);
+        markDirty(newParentId, newName);
+        return true;
     }
 
-    public List<Long> listMessageIdsByPath(String path) {
-        String text = readPinText();
+    /**
+     * @return id of a detached copy of the node; copied directories get shards on the next flush
+     */
+    private int copySubtree(int id) {
+        if (!tree.isDirectory(id)) {
+            return tree.createFile(tree.chunks(id), tree.fileSize(id), tree.modificationTime(id));
+        }
+        int copyId = tree.createDirectory();
+        shardTargets.put(copyId, 1);
+        tree.forEachChild(id, (name, childId) -> tree.link(copyId, name, copySubtree(childId)));
+        return copyId;
+    }
 
-        var entry = traversePath(path);
-        var end = entry.getValue().isBlank() ? entry.getKey() : entry.getKey().get(entry.getValue());
+    private boolean applyReplace(Entry entry) {
+        String path = entry.path();
+        long[] chunks = entry.chunks();
+        int parentId = tree.lookupParent(path);
+        String name = FileSystemTree.fileName(path);
+
+        int id = name.isEmpty() ? FileSystemTree.ROOT : tree.child(parentId, name);
+        if (id == FileSystemTree.NOT_FOUND) {
+            throw new StorageFileNotFoundException("Path not found: " + path);
+        }
+        if (tree.isDirectory(id)) {
+            throw new StorageException("Can not replace contents of a directory: " + path);
+        }
+        long size = entry.size() == null ? FileSystemTree.UNKNOWN_SIZE : entry.size();
+        int modificationTime = entry.modificationTime() == null ? 0 : entry.modificationTime();
+        if (Arrays.equals(tree.chunks(id), chunks)
+            && tree.fileSize(id) == size && tree.modificationTime(id) == modificationTime) {
+            return false;
+        }
+
+        tree.setChunks(id, chunks);
+        tree.setAttributes(id, size, modificationTime);
+        markDirty(parentId, name);
+        return true;
+    }
+
+    @SneakyThrows
+    private static long[] retain(ChunkIndex chunkIndex, long[] chunks) {
+        chunkIndex.retain(chunks);
+        return chunks;
+    }
 
-        if (end instanceof Integer intValue) {
-            return List.of(intValue.longValue());
+    private int createFile(Entry entry, long[] chunks) {
+        if (entry.size() == null) {
+            return tree.createFile(chunks);
         }
-        if (end instanceof Long longValue) {
-            return List.of(longValue);
+        return tree.createFile(chunks, entry.size(), entry.modificationTime() == null ? 0 : entry.modificationTime());
+    }
+
+    private void markDirty(int directoryId, String childName) {
+        long[] shards = tree.shards(directoryId);
+        if (shards == null) {
+            // All buckets get written once the directory receives its shards.
+            return;
         }
+        dirtyBuckets.computeIfAbsent(directoryId, id -> new BitSet())
+                    .set(FileSystemTree.bucket(childName, shards.length));
+    }
 
-        return getIdsFromMap((Map<String, Object>) end);
+    /**
+     * Drops bookkeeping of a detached subtree. With {@code discardShards} its shard messages are also queued
+     * for deletion, which requires reading every directory in the subtree.
+     */
+    private void forgetSubtree(int id, boolean discardShards) {
+        if (!tree.isDirectory(id)) {
+            return;
+        }
+        long[] shards = tree.shards(id);
+        if (shards != null) {
+            for (long shard : shards) {
+                shardOwners.remove(shard);
+                shardHashes.remove(shard);
+                if (discardShards) {
+                    garbageShards.add(shard);
+                }
+            }
+        }
+        shardTargets.remove(id);
+        dirtyBuckets.remove(id);
+        if (discardShards || tree.isLoaded(id)) {
+            tree.forEachChild(id, (name, childId) -> forgetSubtree(childId, discardShards));
+        }
     }
 
-    private List<Long> getIdsFromMap(Map<String, Object> map) {
-        List<Long> ids = new ArrayList<>();
-        for (var entry : map.entrySet()) {
-            if (entry.getValue() instanceof Integer intValue) {
-                ids.add(intValue.longValue());
-            } else if (entry.getValue() instanceof Long longValue) {
-                ids.add(longValue);
-            } else if (entry.getValue() instanceof Map m) {
-                ids.addAll(getIdsFromMap(m));
+    private boolean ownsShard(int directoryId, long shard) {
+        if (!tree.isDirectory(directoryId) || tree.shards(directoryId) == null) {
+            return false;
+        }
+        for (long id : tree.shards(directoryId)) {
+            if (id == shard) {
+                return true;
             }
         }
+        return false;
+    }
 
-        return ids;
+    /**
+     * Re-applies the journal entries written after the last flushed one on top of the tree read from Telegram.
+     * Entries that no longer apply, such as a rename of a path another writer removed meanwhile, are skipped.
+     *
+     * @return number of applied entries
+     */
+    @SneakyThrows
+    private int replayJournal() {
+        int applied = 0;
+        for (Entry entry : journal.readAfter(flushedSequence)) {
+            try {
+                if (apply(entry)) {
+                    applied++;
+                }
+            } catch (StorageException | IllegalArgumentException e) {
+                log.debug("Skipping journal entry {}: {}", entry, e.getMessage());
+            }
+        }
+        return applied;
     }
 
-    public void deletePath(String path) {
-        String text = readPinText();
+    @SneakyThrows
+    private void loadTree(String text) {
+        JsonNode root = text.isBlank() ? null : objectMapper.readTree(text);
 
-        var entry = traversePath(path);
-        var parentDir = entry.getKey();
-        var nodeName = entry.getValue();
+        shardTargets.clear();
+        dirtyBuckets.clear();
+        shardOwners.clear();
+        shardHashes.clear();
 
-        if (nodeName.isBlank()) {
-            throw new IllegalArgumentException("You can't delete filesystem root directory.");
+        if (root != null && root.has(MANIFEST_MARKER)) {
+            Manifest manifest = objectMapper.treeToValue(root, Manifest.class);
+            tree = new FileSystemTree();
+            tree.setShards(FileSystemTree.ROOT, manifest.root());
+            tree.unload(FileSystemTree.ROOT);
+            chunkSize = manifest.chunkSize() > 0 ? manifest.chunkSize() : defaultChunkSize;
+            // Rewriting the manifest records the chunk size if it was missing.
+            manifestShards = manifest.chunkSize() > 0 ? manifest.root() : null;
+            manifestSequence = manifest.journalSequence();
+            for (long shard : manifest.root()) {
+                shardOwners.put(shard, FileSystemTree.ROOT);
+            }
+        } else {
+            tree = root == null ? new FileSystemTree() : objectMapper.treeToValue(root, FileSystemTree.class);
+            chunkSize = defaultChunkSize;
+            manifestShards = null;
+            manifestSequence = 0;
+            markUnsharded(FileSystemTree.ROOT);
         }
+        tree.setLoader(new FileSystemTree.DirectoryLoader() {
+            @Override
+            public void load(FileSystemTree tree, int directoryId) {
+                loadDirectory(tree, directoryId);
+            }
 
-        parentDir.remove(nodeName);
-        changePinText();
+            @Override
+            public void beforeLoad(int directoryId) {
+                if (!lock.isWriteLockedByCurrentThread()) {
+                    throw LoadRequiresWriteLock.INSTANCE;
+                }
+            }
+        });
     }
 
-    public void renameDir(String oldPath, String newPath) {
-        readPinText();
+    private void markUnsharded(int directoryId) {
+        shardTargets.put(directoryId, 1);
+        tree.forEachChild(directoryId, (name, childId) -> {
+            if (tree.isDirectory(childId)) {
+                markUnsharded(childId);
+            }
+        });
+    }
 
-        var oldEntry = traversePath(oldPath);
-        var oldParentDir = oldEntry.getKey();
-        var oldNodeName = oldEntry.getValue();
+    private void loadDirectory(FileSystemTree tree, int directoryId) {
+        long[] shards = tree.shards(directoryId);
+        Map<Long, String> texts = shardStore.read(shards);
+        for (long shard : shards) {
+            String text = texts.get(shard);
+            ShardCodec.readBucket(tree, directoryId, text);
+            shardOwners.put(shard, directoryId);
+            shardHashes.put(shard, text.hashCode());
+        }
+    }
+
+    private void flush() {
+        flushQueued.set(false);
+        try {
+            flushNow();
+        } catch (Exception e) {
+            log.warn("Could not flush metadata changes, will retry", e);
+        }
+    }
 
-        var newEntry = traversePath(newPath);
-        var newParentDir = newEntry.getKey();
-        var newNodeName = newEntry.getValue();
+    @SneakyThrows
+    private void flushNow() {
+        flushLock.lock();
+        try {
+            Batch batch = prepareBatch();
+            if (batch == null) {
+                return;
+            }
 
-        newParentDir.put(newNodeName, oldParentDir.remove(oldNodeName));
+            Timer.Sample sample = Timer.start(app.getMeterRegistry());
+            String exception = "none";
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) {
+                exception = e.getClass().getSimpleName();
+                lock.writeLock().lock();
+                try {
+                    batch.dirtyBuckets().forEach(
+                        (id, buckets) -> dirtyBuckets.computeIfAbsent(id, key -> new BitSet()).or(buckets));
+                    garbageShards.addAll(batch.garbage());
+                    dirtyCount += batch.mutationCount();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                throw e;
+            } finally {
+                sample.stop(Timer.builder("tgfs.metadata.flushes")
+                                 .description("Writes of batched metadata changes to the shard messages")
+                                 .tag("exception", exception)
+                                 .register(app.getMeterRegistry()));
+            }
 
-        changePinText();
+            if (journal != null) {
+                lock.writeLock().lock();
+                try {
+                    flushedSequence = batch.journalSequence();
+                    journal.compact(batch.journalPosition());
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Allocates shard messages for new and splitting directories until every dirty bucket fits in its shard,
+     * then takes a snapshot of everything that has to be written.
+     */
+    @SneakyThrows
+    private Batch prepareBatch() {
+        while (true) {
+            int missing;
+            lock.writeLock().lock();
+            try {
+                if (!hasPendingChanges()) {
+                    return null;
+                }
+                missing = missingShardCount();
+                if (missing == 0) {
+                    Batch batch = collectBatch();
+                    if (batch != null) {
+                        return batch;
+                    }
+                    missing = missingShardCount();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            long[] allocated = shardStore.allocate(missing);
+            lock.writeLock().lock();
+            try {
+                assignShards(allocated);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private boolean hasPendingChanges() {
+        return dirtyCount > 0
+               || !dirtyBuckets.isEmpty()
+               || !shardTargets.isEmpty()
+               || !garbageShards.isEmpty()
+               || !Arrays.equals(manifestShards, tree.shards(FileSystemTree.ROOT));
+    }
+
+    private int missingShardCount() {
+        int missing = 0;
+        for (var target : shardTargets.entrySet()) {
+            int directoryId = target.getKey();
+            if (tree.isDirectory(directoryId)) {
+                long[] shards = tree.shards(directoryId);
+                missing += Math.max(0, target.getValue() - (shards == null ? 0 : shards.length));
+            }
+        }
+        return missing;
+    }
+
+    private void assignShards(long[] allocated) {
+        int next = 0;
+        for (Iterator<Map.Entry<Integer, Integer>> it = shardTargets.entrySet().iterator(); it.hasNext(); ) {
+            var target = it.next();
+            int directoryId = target.getKey();
+            if (!tree.isDirectory(directoryId)) {
+                it.remove();
+                continue;
+            }
+
+            long[] current = tree.shards(directoryId);
+            int have = current == null ? 0 : current.length;
+            int need = target.getValue() - have;
+            if (need > allocated.length - next) {
+                continue;
+            }
+
+            long[] shards = current == null ? new long[need] : Arrays.copyOf(current, target.getValue());
+            System.arraycopy(allocated, next, shards, have, need);
+            next += need;
+            it.remove();
+
+            tree.setShards(directoryId, shards);
+            for (int i = 0; i < shards.length; i++) {
+                shardOwners.put(shards[i], directoryId);
+                if (i >= have) {
+                    shardHashes.put(shards[i], ShardStore.EMPTY_SHARD.hashCode());
+                }
+            }
+            BitSet all = new BitSet(shards.length);
+            all.set(0, shards.length);
+            dirtyBuckets.put(directoryId, all);
+
+            int parentId = tree.parent(directoryId);
+            if (parentId != FileSystemTree.NOT_FOUND) {
+                markDirty(parentId, tree.name(directoryId));
+            }
+        }
+        for (; next < allocated.length; next++) {
+            garbageShards.add(allocated[next]);
+        }
+    }
+
+    /**
+     * @return snapshot to write, or null if some bucket outgrew its shard and the directory has to be split
+     */
+    @SneakyThrows
+    private Batch collectBatch() {
+        Map<Long, String> edits = new LinkedHashMap<>();
+        for (var dirty : dirtyBuckets.entrySet()) {
+            int directoryId = dirty.getKey();
+            if (!tree.isDirectory(directoryId) || tree.shards(directoryId) == null) {
+                continue;
+            }
+            long[] shards = tree.shards(directoryId);
+
+            for (var bucket : ShardCodec.writeBuckets(tree, directoryId, dirty.getValue()).entrySet()) {
+                String text = bucket.getValue();
+                if (text.length() > config.getShardSizeLimit()) {
+                    if (shards.length >= MAX_BUCKETS) {
+                        throw new StorageException("Directory has too many entries to store: " + directoryId);
+                    }
+                    shardTargets.put(directoryId, shards.length * 2);
+                    return null;
+                }
+
+                long shard = shards[bucket.getKey()];
+                if (!Objects.equals(shardHashes.get(shard), text.hashCode())) {
+                    edits.put(shard, text);
+                }
+            }
+        }
+
+        long[] rootShards = tree.shards(FileSystemTree.ROOT);
+        long journalSequence = journal == null ? manifestSequence : journal.sequence();
+        String manifest = null;
+        // The manifest goes last, so the entries it records are never replayed onto shards that miss them.
+        if (!Arrays.equals(manifestShards, rootShards) || journalSequence != manifestSequence) {
+            manifest = objectMapper.writeValueAsString(
+                new Manifest(MANIFEST_VERSION, rootShards, chunkSize, journalSequence));
+            rememberWrite(pinMessageId, manifest);
+        }
+        edits.forEach(this::rememberWrite);
+
+        Batch batch = new Batch(
+            edits,
+            manifest,
+            rootShards,
+            new ArrayList<>(garbageShards),
+            new HashMap<>(dirtyBuckets),
+            journal == null ? 0 : journal.position(),
+            journalSequence,
+            dirtyCount
+        );
+        dirtyBuckets.clear();
+        garbageShards.clear();
+        dirtyCount = 0;
+        return batch;
+    }
+
+    private void writeBatch(Batch batch) {
+        for (var edit : batch.edits().entrySet()) {
+            shardStore.write(edit.getKey(), edit.getValue());
+            lock.writeLock().lock();
+            try {
+                shardHashes.put(edit.getKey(), edit.getValue().hashCode());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (batch.manifest() != null) {
+            shardStore.write(pinMessageId, batch.manifest());
+            lock.writeLock().lock();
+            try {
+                manifestShards = batch.rootShards();
+                manifestSequence = batch.journalSequence();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        shardStore.delete(batch.garbage().stream().mapToLong(Long::longValue).toArray());
     }
 
     @SneakyThrows
@@ -170,60 +993,68 @@ public class PinMessageUtils {
         var txt = new TdApi.InputMessageText();
         txt.text = new TdApi.FormattedText("{}", new TdApi.TextEntity[0]);
         req.inputMessageContent = txt;
-        TdApi.Message result = app.getClient().sendMessage(req, true).get(1, TimeUnit.MINUTES);
+        TdApi.Message result = app.sendMessage(req);
 
         var pinMsgReq = new TdApi.PinChatMessage();
         pinMsgReq.chatId = chatId;
         pinMsgReq.messageId = result.id;
         pinMsgReq.disableNotification = true;
-        app.getClient().send(pinMsgReq).get(1, TimeUnit.MINUTES);
+        app.call(pinMsgReq);
 
         return result.id;
     }
 
     @SneakyThrows
-    private void changePinText() {
-        if (fileSystemMap == null) {
-            fileSystemMap = new HashMap<>();
+    private String loadPinText() {
+        var readRequest = new TdApi.GetMessage(app.getChatId(), pinMessageId);
+        TdApi.MessageContent content = app.call(readRequest).content;
+        if (content instanceof TdApi.MessageText messageText) {
+            return messageText.text.text;
         }
-        ObjectMapper objectMapper = new ObjectMapper();
-        String text = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(fileSystemMap);
-
-        var modifyRequest = new TdApi.EditMessageText();
-        modifyRequest.chatId = app.getChatId();
-        modifyRequest.messageId = pinMessageId;
-        var content = new TdApi.InputMessageText();
-        content.text = new TdApi.FormattedText(text, new TdApi.TextEntity[0]);
-        modifyRequest.inputMessageContent = content;
-        app.getClient().send(modifyRequest).get();
+        return "";
     }
 
-    private Map.Entry<Map<String, Object>, String> traversePath(String path) {
-        if(fileSystemMap == null) {
-            throw new IllegalStateException("Filesystem is not initialized. Read it from pinned message.");
+    private void rememberWrite(long messageId, String text) {
+        recentWrites.add(writeKey(messageId, text));
+        if (recentWrites.size() > RECENT_WRITES_LIMIT) {
+            Iterator<Long> oldest = recentWrites.iterator();
+            oldest.next();
+            oldest.remove();
         }
+    }
 
-        String[] parts = path.split("/");
-        Map<String, Object> currentMap = fileSystemMap;
+    private static long writeKey(long messageId, String text) {
+        return messageId * 31 + text.hashCode();
+    }
 
-        int i = 0;
-        for (; i < parts.length - 1; i++) {
-            String part = parts[i];
-            if (part.isEmpty()) {
-                continue;
-            }
-            if (!currentMap.containsKey(part)) {
-                throw new StorageFileNotFoundException("No such path while traversing: " + path);
-            }
+    /**
+     * Thrown when a reader runs into a directory that has to be loaded first.
+     */
+    private static final class LoadRequiresWriteLock extends RuntimeException {
+        static final LoadRequiresWriteLock INSTANCE = new LoadRequiresWriteLock();
 
-            if (currentMap.get(part) instanceof Map<?,?> map) {
-                currentMap = (Map<String, Object>) map;
-            } else {
-                throw new StorageFileNotFoundException("No such directory while traversing: " + part);
-            }
+        private LoadRequiresWriteLock() {
+            super(null, null, false, false);
         }
+    }
+
+    private record Manifest(
+        @JsonProperty(MANIFEST_MARKER) int version,
+        long[] root,
+        long chunkSize,
+        long journalSequence
+    ) {
+    }
 
-        String lastPath = i < parts.length ? parts[i] : "";
-        return Map.entry(currentMap, lastPath);
+    private record Batch(
+        Map<Long, String> edits,
+        String manifest,
+        long[] rootShards,
+        List<Long> garbage,
+        Map<Integer, BitSet> dirtyBuckets,
+        long journalPosition,
+        long journalSequence,
+        int mutationCount
+    ) {
     }
 }
@@ -0,0 +1,88 @@
+package ru.tgfs.backend.services.tdlight;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ru.tgfs.backend.configurations.TelegramConfig;
+
+/**
+ * Detects sequential reads of a file and prefetches the data that is about to be read.
+ * <p>
+ * The read-ahead window follows the rate at which the reader consumes data, so that roughly
+ * {@code readAheadHorizon} worth of reading is downloaded in advance, within the configured bounds.
+ * A read that does not continue where the previous one ended resets the window.
+ */
+public class ReadAhead {
+    private static final int MAX_STREAMS = 1024;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final ChunkTransfer chunkTransfer;
+    private final long minWindow;
+    private final long maxWindow;
+    private final double horizonSeconds;
+
+    private final Map<String, Stream> streams = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    public ReadAhead(ChunkTransfer chunkTransfer, TelegramConfig.Transfer config) {
+        this.chunkTransfer = chunkTransfer;
+        this.minWindow = config.getReadAheadMin().toBytes();
+        this.maxWindow = config.getReadAheadMax().toBytes();
+        this.horizonSeconds = config.getReadAheadHorizon().toMillis() / 1000.0;
+    }
+
+    /**
+     * @param starts offsets of the chunks, see {@link ChunkTransfer#chunkStarts}
+     */
+    public void onRead(String path, long[] chunks, long[] starts, long offset, int length) {
+        long end = offset + length;
+        long prefetchFrom;
+        long window;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            Stream stream = streams.get(path);
+            if (stream == null || stream.next != offset || length == 0) {
+                streams.put(path, new Stream(end, now));
+                return;
+            }
+
+            double seconds = Math.max(now - stream.lastRead, 1) / 1e9;
+            double rate = length / seconds;
+            stream.rate = stream.rate == 0 ? rate : stream.rate + RATE_SMOOTHING * (rate - stream.rate);
+            stream.next = end;
+            stream.lastRead = now;
+            stream.window = Math.max(minWindow, Math.min(maxWindow, (long) (stream.rate * horizonSeconds)));
+
+            // Re-issued once half of the window ahead has been consumed, so TDLib is not flooded with requests.
+            if (stream.prefetchedUntil - end > stream.window / 2) {
+                return;
+            }
+            prefetchFrom = end;
+            window = stream.window;
+            stream.prefetchedUntil = end + window;
+        }
+
+        chunkTransfer.prefetch(chunks, starts, prefetchFrom, window);
+    }
+
+    public synchronized void forget(String path) {
+        streams.remove(path);
+    }
+
+    private static final class Stream {
+        private long next;
+        private long lastRead;
+        private long prefetchedUntil;
+        private long window;
+        private double rate;
+
+        private Stream(long next, long lastRead) {
+            this.next = next;
+            this.lastRead = lastRead;
+        }
+    }
+}
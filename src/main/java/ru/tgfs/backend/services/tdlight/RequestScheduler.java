@@ -0,0 +1,411 @@
+package ru.tgfs.backend.services.tdlight;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.client.TelegramError;
+import it.tdlight.jni.TdApi;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.tgfs.backend.configurations.TelegramConfig;
+import ru.tgfs.backend.exceptions.StorageException;
+import ru.tgfs.backend.exceptions.StorageRateLimitedException;
+
+/**
+ * Paces outgoing TDLib requests so that bursts of operations do not run into flood waits.
+ * <p>
+ * Every request type has its own token bucket. Requests of a higher {@link Priority} waiting on a bucket take
+ * its tokens before lower ones. A flood wait pauses the bucket of the request type for the time Telegram asks
+ * for, after which the request is retried within its timeout.
+ * <p>
+ * Across request types, the requests of the account waiting for their answer share a limited number of slots,
+ * which go to higher priorities first. Part of them is kept for interactive requests, so that metadata reads
+ * get through while chunk transfers occupy the rest.
+ * <p>
+ * Every request is timed as {@code tgfs.tdlib.requests} by request type; the queues are exposed as
+ * {@code tgfs.scheduler.*} meters.
+ */
+@Slf4j
+public class RequestScheduler implements AutoCloseable {
+    private static final Pattern RETRY_AFTER = Pattern.compile("(?:retry after |FLOOD_WAIT_)(\\d+)");
+
+    public enum Priority {
+        /**
+         * Requests a client waits for, such as metadata reads and writes.
+         */
+        INTERACTIVE,
+        /**
+         * Uploads and downloads of file chunks.
+         */
+        TRANSFER,
+        /**
+         * Work nobody waits for, such as prefetching and cache eviction.
+         */
+        BACKGROUND
+    }
+
+    private final SimpleTelegramClient client;
+    private final TelegramConfig.Scheduler config;
+    private final MeterRegistry meterRegistry;
+    private final Tags tags;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Gate gate;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final AtomicInteger[] queued = new AtomicInteger[Priority.values().length];
+    private final LongAdder[] waitNanos = new LongAdder[Priority.values().length];
+    private final LongAdder[] scheduled = new LongAdder[Priority.values().length];
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder floodWaits = new LongAdder();
+
+    /**
+     * @param tags tags of every meter of this scheduler, telling the accounts apart
+     */
+    public RequestScheduler(
+        SimpleTelegramClient client, TelegramConfig.Scheduler config, MeterRegistry meterRegistry, Tags tags
+    ) {
+        this.client = client;
+        this.config = config;
+        this.meterRegistry = meterRegistry;
+        this.tags = tags;
+        this.gate = new Gate(config.getMaxInFlight(), config.getInteractiveReserve());
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = new AtomicInteger();
+            waitNanos[i] = new LongAdder();
+            scheduled[i] = new LongAdder();
+        }
+        registerMeters();
+    }
+
+    /**
+     * Sends a request once its bucket allows it and waits for the result.
+     *
+     * @param timeout longest time to wait, including the time spent in the queue and on flood waits
+     */
+    public <R extends TdApi.Object> R execute(TdApi.Function<R> function, Priority priority, Duration timeout) {
+        long start = System.nanoTime();
+        String exception = "none";
+        try {
+            return send(function, priority, timeout);
+        } catch (Throwable e) {
+            exception = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            Timer.builder("tgfs.tdlib.requests")
+                 .tags(tags)
+                 .tag("method", name(function))
+                 .tag("priority", priority.name().toLowerCase())
+                 .tag("exception", exception)
+                 .register(meterRegistry)
+                 .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @SneakyThrows
+    private <R extends TdApi.Object> R send(TdApi.Function<R> function, Priority priority, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Bucket bucket = bucket(function);
+        for (int attempt = 0; ; attempt++) {
+            bucket.acquire(priority, deadline);
+            gate.enter(priority, deadline);
+
+            CompletableFuture<R> result = null;
+            try {
+                result = client.send(function);
+                return result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                result.cancel(false);
+                throw new StorageException(
+                    "No answer to " + name(function) + " from Telegram within " + timeout);
+            } catch (ExecutionException e) {
+                long retryAfter = floodWaitSeconds(e.getCause());
+                if (retryAfter < 0) {
+                    throw e.getCause();
+                }
+                floodWaits.increment();
+                log.warn("Flood wait of {}s for {}", retryAfter, name(function));
+                bucket.pause(TimeUnit.SECONDS.toNanos(retryAfter));
+                if (attempt >= config.getFloodWaitRetries()) {
+                    throw new StorageRateLimitedException(
+                        "Telegram limits " + name(function) + " requests", Duration.ofSeconds(retryAfter));
+                }
+            } finally {
+                gate.leave();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #execute} without blocking the caller.
+     */
+    public <R extends TdApi.Object> CompletableFuture<R> submit(
+        TdApi.Function<R> function, Priority priority, Duration timeout
+    ) {
+        return CompletableFuture.supplyAsync(() -> execute(function, priority, timeout), executor);
+    }
+
+    /**
+     * @return number of requests of the priority waiting for their bucket
+     */
+    public int getQueueDepth(Priority priority) {
+        return queued[priority.ordinal()].get();
+    }
+
+    /**
+     * @return total time requests of the priority spent waiting for their bucket
+     */
+    public Duration getWaitTime(Priority priority) {
+        return Duration.ofNanos(waitNanos[priority.ordinal()].sum());
+    }
+
+    public long getScheduledCount(Priority priority) {
+        return scheduled[priority.ordinal()].sum();
+    }
+
+    public Duration getMaxWaitTime() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    public long getFloodWaits() {
+        return floodWaits.sum();
+    }
+
+    /**
+     * @return number of requests sent and waiting for their answer
+     */
+    public int getInFlight() {
+        return gate.inFlight();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void registerMeters() {
+        for (Priority priority : Priority.values()) {
+            Tags priorityTags = tags.and("priority", priority.name().toLowerCase());
+            Gauge.builder("tgfs.scheduler.queue", this, scheduler -> scheduler.getQueueDepth(priority))
+                 .description("Requests waiting for their token bucket")
+                 .tags(priorityTags)
+                 .register(meterRegistry);
+            FunctionTimer.builder(
+                             "tgfs.scheduler.wait", this, scheduler -> scheduler.getScheduledCount(priority),
+                             scheduler -> scheduler.getWaitTime(priority).toNanos(), TimeUnit.NANOSECONDS)
+                         .description("Time requests spent waiting for their token bucket")
+                         .tags(priorityTags)
+                         .register(meterRegistry);
+        }
+        TimeGauge.builder("tgfs.scheduler.wait.max", this, TimeUnit.NANOSECONDS,
+                          scheduler -> scheduler.getMaxWaitTime().toNanos())
+                 .tags(tags)
+                 .register(meterRegistry);
+        Gauge.builder("tgfs.scheduler.in.flight", this, RequestScheduler::getInFlight)
+             .description("Requests sent and waiting for their answer")
+             .tags(tags)
+             .register(meterRegistry);
+        FunctionCounter.builder("tgfs.scheduler.flood.waits", this, RequestScheduler::getFloodWaits)
+                       .description("Flood waits Telegram answered requests with")
+                       .tags(tags)
+                       .register(meterRegistry);
+    }
+
+    private Bucket bucket(TdApi.Function<?> function) {
+        return buckets.computeIfAbsent(name(function), name -> new Bucket(
+            config.getRates().getOrDefault(name, config.getDefaultRate()), config.getBurst()));
+    }
+
+    private static String name(TdApi.Function<?> function) {
+        return function.getClass().getSimpleName();
+    }
+
+    /**
+     * @return seconds Telegram asks to wait before repeating the request, or -1 if the error is not a flood wait
+     */
+    private static long floodWaitSeconds(Throwable error) {
+        if (!(error instanceof TelegramError telegramError) || telegramError.getErrorCode() != 429) {
+            return -1;
+        }
+        Matcher matcher = RETRY_AFTER.matcher(telegramError.getErrorMessage());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 1;
+    }
+
+    /**
+     * Slots of requests waiting for their answer, shared by all request types of the account.
+     */
+    private static final class Gate {
+        private final int capacity;
+        private final int reserve;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final int[] waiting = new int[Priority.values().length];
+        private int inFlight;
+
+        private Gate(int capacity, int reserve) {
+            this.capacity = Math.max(1, capacity);
+            this.reserve = Math.max(0, Math.min(reserve, this.capacity - 1));
+        }
+
+        void enter(Priority priority, long deadline) throws InterruptedException {
+            lock.lock();
+            waiting[priority.ordinal()]++;
+            try {
+                while (inFlight >= limit(priority) || higherWaiting(priority)) {
+                    long delay = deadline - System.nanoTime();
+                    if (delay <= 0) {
+                        throw new StorageException("Timed out waiting to send a request to Telegram");
+                    }
+                    changed.awaitNanos(delay);
+                }
+                inFlight++;
+            } finally {
+                waiting[priority.ordinal()]--;
+                changed.signalAll();
+                lock.unlock();
+            }
+        }
+
+        void leave() {
+            lock.lock();
+            try {
+                inFlight--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int inFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int limit(Priority priority) {
+            return priority == Priority.INTERACTIVE ? capacity : capacity - reserve;
+        }
+
+        private boolean higherWaiting(Priority priority) {
+            for (int i = 0; i < priority.ordinal(); i++) {
+                if (waiting[i] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class Bucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final int[] waiting = new int[Priority.values().length];
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long pausedUntil = refilledAt;
+
+        private Bucket(double ratePerSecond, int burst) {
+            this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, burst);
+            this.tokens = capacity;
+        }
+
+        void acquire(Priority priority, long deadline) throws InterruptedException {
+            long start = System.nanoTime();
+            queued[priority.ordinal()].incrementAndGet();
+            lock.lock();
+            waiting[priority.ordinal()]++;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    if (pausedUntil - deadline > 0) {
+                        throw new StorageRateLimitedException(
+                            "Telegram limits requests", Duration.ofNanos(pausedUntil - now));
+                    }
+                    if (pausedUntil - now <= 0 && tokens >= 1 && !higherWaiting(priority)) {
+                        tokens -= 1;
+                        return;
+                    }
+                    if (deadline - now <= 0) {
+                        throw new StorageException("Timed out waiting to send a request to Telegram");
+                    }
+
+                    long delay = deadline - now;
+                    if (pausedUntil - now > 0) {
+                        delay = Math.min(delay, pausedUntil - now);
+                    } else if (tokens < 1) {
+                        delay = Math.min(delay, (long) Math.ceil((1 - tokens) / ratePerNano));
+                    }
+                    changed.awaitNanos(delay);
+                }
+            } finally {
+                waiting[priority.ordinal()]--;
+                changed.signalAll();
+                lock.unlock();
+
+                long waited = System.nanoTime() - start;
+                queued[priority.ordinal()].decrementAndGet();
+                waitNanos[priority.ordinal()].add(waited);
+                scheduled[priority.ordinal()].increment();
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+            }
+        }
+
+        void pause(long nanos) {
+            lock.lock();
+            try {
+                long until = System.nanoTime() + nanos;
+                if (until - pausedUntil > 0) {
+                    pausedUntil = until;
+                }
+                tokens = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill(long now) {
+            // Nothing accumulates while the bucket is paused by a flood wait.
+            long from = pausedUntil - refilledAt > 0 ? pausedUntil : refilledAt;
+            if (now - from > 0) {
+                tokens = Math.min(capacity, tokens + (now - from) * ratePerNano);
+            }
+            refilledAt = now;
+        }
+
+        private boolean higherWaiting(Priority priority) {
+            for (int i = 0; i < priority.ordinal(); i++) {
+                if (waiting[i] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.tgfs.backend.services.tdlight;
+
+import it.tdlight.client.TelegramError;
+import it.tdlight.jni.TdApi;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Telegram side of the sharded metadata index: plain text messages in the storage chat.
+ */
+@RequiredArgsConstructor
+public class ShardStore {
+    public static final String EMPTY_SHARD = "{}";
+    private static final String MESSAGE_NOT_MODIFIED = "MESSAGE_NOT_MODIFIED";
+
+    private final TgfsApplication app;
+
+    public long[] allocate(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            var req = new TdApi.SendMessage();
+            req.chatId = app.getChatId();
+            req.inputMessageContent = textContent(EMPTY_SHARD);
+            ids[i] = app.sendMessage(req).id;
+        }
+        return ids;
+    }
+
+    /**
+     * @return text of every requested shard; missing or non-text messages read as empty shards
+     */
+    public Map<Long, String> read(long[] ids) {
+        var messages = app.call(new TdApi.GetMessages(app.getChatId(), ids));
+        Map<Long, String> texts = new HashMap<>();
+        for (long id : ids) {
+            texts.put(id, EMPTY_SHARD);
+        }
+        for (TdApi.Message message : messages.messages) {
+            if (message != null && message.content instanceof TdApi.MessageText messageText) {
+                texts.put(message.id, messageText.text.text);
+            }
+        }
+        return texts;
+    }
+
+    public void write(long id, String text) {
+        var req = new TdApi.EditMessageText();
+        req.chatId = app.getChatId();
+        req.messageId = id;
+        req.inputMessageContent = textContent(text);
+        try {
+            app.call(req);
+            app.getMeterRegistry().counter("tgfs.metadata.shard.edits", "result", "edited").increment();
+        } catch (TelegramError e) {
+            if (MESSAGE_NOT_MODIFIED.equals(e.getErrorMessage())) {
+                app.getMeterRegistry().counter("tgfs.metadata.shard.edits", "result", "unchanged").increment();
+                return;
+            }
+            throw e;
+        }
+    }
+
+    public void delete(long[] ids) {
+        if (ids.length == 0) {
+            return;
+        }
+        app.call(new TdApi.DeleteMessages(app.getChatId(), ids, true));
+    }
+
+    private static TdApi.InputMessageText textContent(String text) {
+        var content = new TdApi.InputMessageText();
+        content.text = new TdApi.FormattedText(text, new TdApi.TextEntity[0]);
+        return content;
+    }
+}
@@ -0,0 +1,137 @@
+package ru.tgfs.backend.services.tdlight;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local files handed to TDLib for upload. Every staged file gets a directory of its own, so concurrent uploads
+ * of equally named files do not collide while TDLib still sees the original file name.
+ */
+@Slf4j
+public final class StagingFiles {
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+    private static final int COPY_BUFFER = 1024 * 1024;
+
+    private StagingFiles() {
+    }
+
+    public static Path create(String fileName) throws IOException {
+        Path directory = Files.createTempDirectory("tgfs-upload");
+        return Files.createFile(directory.resolve(Path.of(fileName).getFileName().toString()));
+    }
+
+    /**
+     * Copies at most {@code limit} bytes of the source into a new staging file.
+     *
+     * @param digest digest to update with the copied bytes, or {@code null}
+     */
+    public static Path stage(String fileName, ReadableByteChannel source, long limit, MessageDigest digest)
+        throws IOException {
+        if (digest != null) {
+            source = digesting(source, digest);
+        }
+        Path path = create(fileName);
+        try (FileChannel target = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long transferred;
+            while (position < limit
+                   && (transferred = target.transferFrom(source, position, Math.min(TRANSFER_CHUNK, limit - position))) > 0) {
+                position += transferred;
+            }
+        } catch (IOException e) {
+            discard(path);
+            throw e;
+        }
+        return path;
+    }
+
+    /**
+     * Copies a region of a file that may be written concurrently into a new staging file. Every byte is read
+     * once, so the digest always matches the staged contents.
+     *
+     * @param digest digest to update with the copied bytes, or {@code null}
+     */
+    public static Path stage(String fileName, FileChannel source, long position, long limit, MessageDigest digest)
+        throws IOException {
+        Path path = create(fileName);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER, Math.max(1, limit)));
+        try (FileChannel target = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < limit) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), limit - copied));
+                int read = source.read(buffer, position + copied);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer.duplicate());
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                copied += read;
+            }
+        } catch (IOException e) {
+            discard(path);
+            throw e;
+        }
+        return path;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer into a new staging file.
+     */
+    public static Path stage(String fileName, ByteBuffer contents) throws IOException {
+        Path path = create(fileName);
+        try (FileChannel target = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            while (contents.hasRemaining()) {
+                target.write(contents);
+            }
+        } catch (IOException e) {
+            discard(path);
+            throw e;
+        }
+        return path;
+    }
+
+    private static ReadableByteChannel digesting(ReadableByteChannel source, MessageDigest digest) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer target) throws IOException {
+                int start = target.position();
+                int read = source.read(target);
+                if (read > 0) {
+                    digest.update(target.duplicate().flip().position(start));
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return source.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    public static void discard(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(path.getParent());
+        } catch (IOException e) {
+            log.warn("Could not remove staging file {}", path, e);
+        }
+    }
+}
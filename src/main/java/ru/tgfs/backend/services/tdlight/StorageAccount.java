@@ -0,0 +1,196 @@
+package ru.tgfs.backend.services.tdlight;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import it.tdlight.client.SimpleAuthenticationSupplier;
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.client.SimpleTelegramClientBuilder;
+import it.tdlight.jni.TdApi;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import ru.tgfs.backend.configurations.TelegramConfig;
+import ru.tgfs.backend.exceptions.StorageException;
+
+/**
+ * One Telegram account and the chat it keeps file chunks in.
+ * <p>
+ * Message ids are only unique within a chat, so chunks are referred to by chunk ids: the message id with the
+ * index of the owning account in the high bits. Chunks of the first account have chunk ids equal to their
+ * message ids, which keeps filesystems created with a single account readable.
+ */
+@Getter
+public class StorageAccount implements AutoCloseable {
+    private static final int ACCOUNT_SHIFT = 56;
+    private static final long MESSAGE_ID_MASK = (1L << ACCOUNT_SHIFT) - 1;
+    private static final int MAX_EARLY_SENDS = 1024;
+
+    private final int index;
+    private final SimpleTelegramClient client;
+    private final RequestScheduler scheduler;
+    private final TelegramConfig config;
+    private final long chatId;
+    /**
+     * Number of chunk uploads currently running on this account.
+     */
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    /**
+     * Results of outgoing messages keyed by the temporary id returned from {@link TdApi.SendMessage}, for the sends
+     * being waited for. Guards {@link #earlySends} as well.
+     */
+    private final Map<Long, CompletableFuture<TdApi.Message>> pendingSends = new HashMap<>();
+    /**
+     * Results reported before their sender started waiting. Bounded, so that results no one waits for any more
+     * are dropped eventually.
+     */
+    private final Map<Long, CompletableFuture<TdApi.Message>> earlySends = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CompletableFuture<TdApi.Message>> eldest) {
+            return size() > MAX_EARLY_SENDS;
+        }
+    };
+
+    /**
+     * Connection settings of an account: the builder may already carry update handlers of the application.
+     *
+     * @param chatId chat to store chunks in, or {@code null} for the Saved Messages of the account
+     */
+    public record Session(
+        SimpleTelegramClientBuilder clientBuilder,
+        SimpleAuthenticationSupplier<?> authenticationData,
+        Long chatId
+    ) {
+    }
+
+    public StorageAccount(int index, Session session, TelegramConfig config, MeterRegistry meterRegistry) {
+        this.index = index;
+        this.config = config;
+        session.clientBuilder().addUpdateHandler(TdApi.UpdateMessageSendSucceeded.class, this::onMessageSendSucceeded);
+        session.clientBuilder().addUpdateHandler(TdApi.UpdateMessageSendFailed.class, this::onMessageSendFailed);
+        this.client = session.clientBuilder().build(session.authenticationData());
+        this.scheduler = new RequestScheduler(
+            client, config.getScheduler(), meterRegistry, Tags.of("account", String.valueOf(index)));
+        this.chatId = session.chatId() != null ? session.chatId() : savedMessagesChat();
+    }
+
+    public static int accountIndex(long chunkId) {
+        return (int) (chunkId >>> ACCOUNT_SHIFT);
+    }
+
+    public static long messageId(long chunkId) {
+        return chunkId & MESSAGE_ID_MASK;
+    }
+
+    public long chunkId(long messageId) {
+        return ((long) index << ACCOUNT_SHIFT) | messageId;
+    }
+
+    /**
+     * Sends a TDLib request a client is waiting for and waits for its result at most the configured call timeout.
+     */
+    public <R extends TdApi.Object> R call(TdApi.Function<R> function) {
+        return scheduler.execute(function, RequestScheduler.Priority.INTERACTIVE, config.getCallTimeout());
+    }
+
+    /**
+     * Sends a TDLib request that transfers file contents, waiting at most the transfer timeout.
+     */
+    public <R extends TdApi.Object> R transfer(TdApi.Function<R> function) {
+        return scheduler.execute(function, RequestScheduler.Priority.TRANSFER, config.getTransfer().getTimeout());
+    }
+
+    /**
+     * Sends a TDLib request nobody waits for, after the requests that someone does wait for.
+     */
+    public <R extends TdApi.Object> CompletableFuture<R> background(TdApi.Function<R> function) {
+        return scheduler.submit(function, RequestScheduler.Priority.BACKGROUND, config.getCallTimeout());
+    }
+
+    /**
+     * Sends a message and waits until the server has accepted it, including the upload of attached files.
+     *
+     * @return the message with its final server id
+     */
+    @SneakyThrows
+    public TdApi.Message sendMessage(TdApi.SendMessage req) {
+        TdApi.Message temporary = req.inputMessageContent instanceof TdApi.InputMessageDocument
+                                  ? transfer(req)
+                                  : call(req);
+        if (temporary.sendingState == null) {
+            return temporary;
+        }
+
+        CompletableFuture<TdApi.Message> result;
+        synchronized (pendingSends) {
+            result = earlySends.remove(temporary.id);
+            if (result == null) {
+                result = new CompletableFuture<>();
+                pendingSends.put(temporary.id, result);
+            }
+        }
+        Duration timeout = config.getTransfer().getTimeout();
+        try {
+            return result.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new StorageException("Message was not sent within " + timeout);
+        } finally {
+            synchronized (pendingSends) {
+                pendingSends.remove(temporary.id);
+            }
+        }
+    }
+
+    /**
+     * Deletes chunk messages of this account.
+     */
+    public void deleteMessages(long[] messageIds) {
+        if (messageIds.length > 0) {
+            call(new TdApi.DeleteMessages(chatId, messageIds, true));
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        scheduler.close();
+        client.close();
+    }
+
+    private long savedMessagesChat() {
+        TdApi.User me = call(new TdApi.GetMe());
+        return call(new TdApi.CreatePrivateChat(me.id, true)).id;
+    }
+
+    private void onMessageSendSucceeded(TdApi.UpdateMessageSendSucceeded update) {
+        sendResult(update.oldMessageId).complete(update.message);
+    }
+
+    private void onMessageSendFailed(TdApi.UpdateMessageSendFailed update) {
+        sendResult(update.oldMessageId)
+            .completeExceptionally(new StorageException("Could not send message: " + update.error.message));
+    }
+
+    /**
+     * @return the result a sender waits for, or a new one kept among the early sends if no one waits yet
+     */
+    private CompletableFuture<TdApi.Message> sendResult(long temporaryId) {
+        synchronized (pendingSends) {
+            CompletableFuture<TdApi.Message> result = pendingSends.remove(temporaryId);
+            if (result == null) {
+                result = new CompletableFuture<>();
+                earlySends.put(temporaryId, result);
+            }
+            return result;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ru.tgfs.backend.services.tdlight;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import it.tdlight.Init;
 import it.tdlight.Log;
 import it.tdlight.Slf4JLogMessageHandler;
@@ -12,6 +13,8 @@ import it.tdlight.client.TDLibSettings;
 import jakarta.annotation.PreDestroy;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import org.springframework.stereotype.Service;
@@ -21,8 +24,10 @@ import ru.tgfs.backend.configurations.TelegramConfig;
 @RequiredArgsConstructor
 public class TdlightInitializer {
     private final TelegramConfig telegramConfig;
+    private final MeterRegistry meterRegistry;
 
     private SimpleTelegramClientFactory clientFactory;
+    private TgfsApplication app;
 
     @SneakyThrows
     public TgfsApplication init() {
@@ -30,11 +35,24 @@ public class TdlightInitializer {
         Log.setLogMessageHandler(1, new Slf4JLogMessageHandler());
         clientFactory = new SimpleTelegramClientFactory();
 
+        List<StorageAccount.Session> sessions = new ArrayList<>();
+        sessions.add(session(Paths.get("tdlib-session-user-admin"), telegramConfig.getPhoneNumber(), null));
+        for (TelegramConfig.Account account : telegramConfig.getAccounts()) {
+            Path sessionPath = account.getSessionPath() != null
+                               ? account.getSessionPath()
+                               : Paths.get("tdlib-session-" + account.getPhoneNumber().replaceAll("\\D", ""));
+            sessions.add(session(sessionPath, account.getPhoneNumber(), account.getChatId()));
+        }
+
+        app = new TgfsApplication(sessions, telegramConfig.getAdminId(), telegramConfig, meterRegistry);
+        return app;
+    }
+
+    private StorageAccount.Session session(Path sessionPath, String phoneNumber, Long chatId) {
         var apiToken = new APIToken(telegramConfig.getApp().getApiId(), telegramConfig.getApp().getApiHash());
         TDLibSettings settings = TDLibSettings.create(apiToken);
 
         // Configure the session directory.
-        Path sessionPath = Paths.get("tdlib-session-user-admin");
         settings.setDatabaseDirectoryPath(sessionPath.resolve("data"));
         settings.setDownloadedFilesDirectoryPath(sessionPath.resolve("downloads"));
 
@@ -44,13 +62,17 @@ public class TdlightInitializer {
         // Configure the authentication info
         // Replace with AuthenticationSupplier.consoleLogin(), or .user(xxx), or .bot(xxx);
         // SimpleAuthenticationSupplier<?> authenticationData = AuthenticationSupplier.bot(telegramConfig.getBot().getToken());
-        SimpleAuthenticationSupplier<?> authenticationData = AuthenticationSupplier.user(telegramConfig.getPhoneNumber());
+        SimpleAuthenticationSupplier<?> authenticationData = AuthenticationSupplier.user(phoneNumber);
 
-        return new TgfsApplication(clientBuilder, authenticationData, telegramConfig.getAdminId());
+        return new StorageAccount.Session(clientBuilder, authenticationData, chatId);
     }
 
     @PreDestroy
+    @SneakyThrows
     public void destroy() {
+        if (app != null) {
+            app.close();
+        }
         if (clientFactory != null) {
             clientFactory.close();
         }
@@ -1,70 +1,176 @@
 package ru.tgfs.backend.services.tdlight;
 
-import it.tdlight.client.SimpleAuthenticationSupplier;
-import it.tdlight.client.SimpleTelegramClient;
-import it.tdlight.client.SimpleTelegramClientBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.tdlight.jni.TdApi;
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.Getter;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.multipart.MultipartFile;
+import ru.tgfs.backend.configurations.TelegramConfig;
 import ru.tgfs.backend.exceptions.StorageException;
 import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
 import ru.tgfs.backend.exceptions.StorageNameAlreadyExistsException;
+import ru.tgfs.backend.models.DirectoryEntry;
 import ru.tgfs.backend.models.NodeAttributes;
 import ru.tgfs.backend.models.NodeInfo;
 import ru.tgfs.backend.models.Privileges;
+import ru.tgfs.backend.services.tdlight.tree.FileSystemTree;
 
 @Getter
+@Slf4j
 public class TgfsApplication implements AutoCloseable {
-    private final SimpleTelegramClient client;
     private final long adminId;
-    private long chatId;
-    private PinMessageUtils pinMessageUtils;
+    private final TelegramConfig config;
+    private final MeterRegistry meterRegistry;
+    /**
+     * Accounts storing file chunks. The first one also keeps the metadata.
+     */
+    private final List<StorageAccount> accounts;
+    private final AtomicInteger nextAccount = new AtomicInteger();
+    private volatile PinMessageUtils pinMessageUtils;
+    private ChunkIndex chunkIndex;
+    private ChunkTransfer chunkTransfer;
+    private DownloadCache downloadCache;
+    private ReadAhead readAhead;
 
+    /**
+     * @param sessions connections of the storage accounts; the first one keeps the metadata
+     */
     public TgfsApplication(
-        SimpleTelegramClientBuilder clientBuilder,
-        SimpleAuthenticationSupplier<?> authenticationData,
-        long adminId
+        List<StorageAccount.Session> sessions, long adminId, TelegramConfig config, MeterRegistry meterRegistry
     ) {
         this.adminId = adminId;
-        this.client = clientBuilder.build(authenticationData);
+        this.config = config;
+        this.meterRegistry = meterRegistry;
+        sessions.get(0).clientBuilder().addUpdateHandler(TdApi.UpdateMessageContent.class, this::onMessageContent);
+        this.accounts = new ArrayList<>(sessions.size());
+        for (StorageAccount.Session session : sessions) {
+            accounts.add(new StorageAccount(accounts.size(), session, config, meterRegistry));
+        }
         initApp();
     }
 
     @Override
     public void close() throws Exception {
-        client.close();
+        if (chunkTransfer != null) {
+            chunkTransfer.close();
+        }
+        if (pinMessageUtils != null) {
+            pinMessageUtils.close();
+        }
+        if (chunkIndex != null) {
+            chunkIndex.close();
+        }
+        for (StorageAccount account : accounts) {
+            account.close();
+        }
     }
 
     @SneakyThrows
     public void saveFile(String path, MultipartFile file) {
-        System.out.println(path);
-        var req = new TdApi.SendMessage();
-        req.chatId = chatId;
-        var document = new TdApi.InputMessageDocument();
+        log.debug("Saving file {}", path);
+        long[] chunks;
+        try (var input = file.getInputStream()) {
+            chunks = chunkTransfer.upload(file.getOriginalFilename(), input, pinMessageUtils.getChunkSize());
+        }
+        try {
+            pinMessageUtils.addFile(path, chunks, file.getSize(), now());
+        } catch (RuntimeException e) {
+            releaseChunks(chunks);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a TDLib request of the metadata account, see {@link StorageAccount#call}.
+     */
+    public <R extends TdApi.Object> R call(TdApi.Function<R> function) {
+        return primary().call(function);
+    }
 
-        var dirPath = Files.createTempDirectory(null);
-        var fpath = Files.createFile(Path.of(dirPath.toString(), file.getOriginalFilename()));
-        fpath.toFile().deleteOnExit();
-        dirPath.toFile().deleteOnExit();
-        Files.write(fpath, file.getBytes());
+    /**
+     * Sends a message to the storage chat of the first account, which also holds the metadata.
+     */
+    public TdApi.Message sendMessage(TdApi.SendMessage req) {
+        return primary().sendMessage(req);
+    }
 
-        document.document = new TdApi.InputFileLocal(fpath.toString());
-        req.inputMessageContent = document;
+    public long getChatId() {
+        return primary().getChatId();
+    }
+
+    /**
+     * @return the account owning a chunk
+     */
+    public StorageAccount account(long chunkId) {
+        int index = StorageAccount.accountIndex(chunkId);
+        if (index >= accounts.size()) {
+            throw new StorageException("Chunk belongs to an account that is not configured: " + chunkId);
+        }
+        return accounts.get(index);
+    }
+
+    /**
+     * Chooses the account a new chunk is uploaded to: the one with the fewest running uploads, taking turns
+     * between equally loaded ones.
+     */
+    public StorageAccount placeChunk() {
+        int start = Math.floorMod(nextAccount.getAndIncrement(), accounts.size());
+        StorageAccount best = null;
+        for (int i = 0; i < accounts.size(); i++) {
+            StorageAccount account = accounts.get((start + i) % accounts.size());
+            if (best == null || account.getActiveUploads().get() < best.getActiveUploads().get()) {
+                best = account;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Deletes chunk messages, each from the chat of its own account.
+     */
+    public void deleteChunks(long[] chunks) {
+        Map<Integer, List<Long>> byAccount = Arrays.stream(chunks)
+                                                   .boxed()
+                                                   .collect(Collectors.groupingBy(StorageAccount::accountIndex));
+        byAccount.forEach((index, ids) -> accounts.get(index).deleteMessages(
+            ids.stream().mapToLong(StorageAccount::messageId).toArray()));
+    }
+
+    /**
+     * Drops one reference to each chunk and deletes the chunks nothing refers to anymore.
+     */
+    @SneakyThrows
+    public void releaseChunks(long[] chunks) {
+        long[] unused = chunkIndex.release(chunks);
+        deleteChunks(unused);
+        downloadCache.invalidate(unused);
+    }
 
-        client.send(req).get();
-        Thread.sleep(300);
-        long messageId = getLastMessageId();
-        pinMessageUtils.addPath(path, messageId);
+    private StorageAccount primary() {
+        return accounts.get(0);
     }
 
+    /**
+     * Moves a file or a directory. A directory moved onto an existing directory goes inside it, a file moved
+     * onto an existing file replaces it.
+     */
     public void rename(String oldPath, String newPath) {
         var oldInfo = pinMessageUtils.getInfo(oldPath);
+        if (pinMessageUtils.isSameNode(oldPath, newPath)) {
+            return;
+        }
         NodeInfo newInfo = null;
         try {
             newInfo = pinMessageUtils.getInfo(newPath);
@@ -74,35 +180,52 @@ public class TgfsApplication implements AutoCloseable {
             if (newInfo != null && !newInfo.isDirectory()) {
                 throw new StorageNameAlreadyExistsException("Couldn't move to: " + newPath);
             } else if (newInfo != null && newInfo.isDirectory()) {
-                newPath = newPath + "/" + oldPath.substring(oldPath.lastIndexOf("/"));
+                newPath = newPath + "/" + FileSystemTree.fileName(oldPath);
             }
+        } else if (newInfo != null && newInfo.isDirectory()) {
+            throw new StorageNameAlreadyExistsException("Can not replace a directory with a file: " + newPath);
+        }
 
-            pinMessageUtils.renameDir(oldPath, newPath);
-            return;
+        // Replacing an existing file is part of the same metadata change as the move.
+        releaseChunks(pinMessageUtils.movePath(oldPath, newPath));
+        readAhead.forget(oldPath);
+        readAhead.forget(newPath);
+    }
+
+    /**
+     * Copies a file or a directory tree without transferring any contents: the copy shares the chunks of the
+     * original, and a later write to either of them re-uploads only the blocks it changes.
+     */
+    public void copy(String path, String newPath) {
+        NodeInfo info = pinMessageUtils.getInfo(path);
+        NodeInfo newInfo = null;
+        try {
+            newInfo = pinMessageUtils.getInfo(newPath);
+        } catch (StorageFileNotFoundException ignored) {
+        }
+        if (newInfo != null && newInfo.isDirectory()) {
+            newPath = newPath + "/" + FileSystemTree.fileName(path);
+        } else if (newInfo != null && info.isDirectory()) {
+            throw new StorageNameAlreadyExistsException("Couldn't copy to: " + newPath);
+        }
+        if (path.equals(newPath)) {
+            throw new StorageException("Can not copy a file onto itself: " + path);
         }
 
-        pinMessageUtils.deletePath(newPath);
-        pinMessageUtils.addPath(newPath, oldInfo.messageId());
-        pinMessageUtils.deletePath(oldPath);
+        // Replacing an existing file is part of the same metadata change as the copy.
+        releaseChunks(pinMessageUtils.copyPath(path, newPath, chunkIndex));
+        readAhead.forget(newPath);
     }
 
     @SneakyThrows
     public void createDir(String path) {
-        String text = pinMessageUtils.readPinText();
-
-        System.out.println("Creating dir: " + path);
-        pinMessageUtils.addPath(path, null);
+        log.debug("Creating directory {}", path);
+        pinMessageUtils.addDirectory(path);
     }
 
-    @SneakyThrows
     public void deletePath(String path) {
-        var req = new TdApi.DeleteMessages();
-        req.chatId = chatId;
-        req.messageIds = pinMessageUtils.listMessageIdsByPath(path).stream().mapToLong(Long::longValue).toArray();
-        req.revoke = true;
-        client.send(req).get();
-
-        pinMessageUtils.deletePath(path);
+        releaseChunks(pinMessageUtils.deletePath(path));
+        readAhead.forget(path);
     }
 
     public List<String> listDirectory(String path) {
@@ -112,19 +235,85 @@ public class TgfsApplication implements AutoCloseable {
     @SneakyThrows
     public NodeAttributes getPathInfo(String path) {
         NodeInfo nodeInfo = pinMessageUtils.getInfo(path);
+        return attributes(resolveAttributes(List.of(nodeInfo)).get(0));
+    }
+
+    /**
+     * Lists a directory together with the attributes of every child.
+     */
+    public List<DirectoryEntry> listDirectoryAttributes(String path) {
+        List<NodeInfo> children = resolveAttributes(pinMessageUtils.listInfosByPath(path));
+        List<DirectoryEntry> entries = new ArrayList<>(children.size());
+        for (NodeInfo child : children) {
+            entries.add(new DirectoryEntry(FileSystemTree.fileName(child.path()), attributes(child)));
+        }
+        return entries;
+    }
 
+    private static NodeAttributes attributes(NodeInfo nodeInfo) {
         if (nodeInfo.isDirectory()) {
             return new NodeAttributes(true, 0, 0,
                                       Privileges.ALL(), Privileges.ALL(), Privileges.ALL()
             );
         }
+        return new NodeAttributes(false, nodeInfo.size(), nodeInfo.modificationTime(),
+                                  Privileges.ALL(), Privileges.ALL(), Privileges.ALL()
+        );
+    }
 
-        var req = new TdApi.GetMessage();
-        req.chatId = chatId;
-        req.messageId = nodeInfo.messageId();
-        var message = client.send(req).get(1, TimeUnit.MINUTES);
+    /**
+     * Files stored before sizes were kept in metadata have no attributes: they are read from the messages of
+     * all such files in one request and recorded, so this happens once per file. Such files predate storage
+     * accounts other than the first one.
+     */
+    @SneakyThrows
+    private List<NodeInfo> resolveAttributes(List<NodeInfo> nodes) {
+        List<NodeInfo> unresolved = nodes.stream().filter(node -> !node.isDirectory() && node.size() < 0).toList();
+        if (unresolved.isEmpty()) {
+            return nodes;
+        }
 
-        long size = switch (message.content) {
+        var req = new TdApi.GetMessages();
+        req.chatId = getChatId();
+        req.messageIds = unresolved.stream()
+                                   .flatMap(node -> node.messageIds().stream())
+                                   .mapToLong(Long::longValue)
+                                   .toArray();
+        Map<Long, TdApi.Message> messages = new HashMap<>();
+        for (TdApi.Message message : call(req).messages) {
+            if (message != null) {
+                messages.put(message.id, message);
+            }
+        }
+
+        List<NodeInfo> resolved = new ArrayList<>(nodes.size());
+        for (NodeInfo node : nodes) {
+            if (node.isDirectory() || node.size() >= 0) {
+                resolved.add(node);
+                continue;
+            }
+            long size = 0;
+            int date = 0;
+            for (Long messageId : node.messageIds()) {
+                TdApi.Message message = messages.get(messageId);
+                if (message != null) {
+                    size += contentSize(message.content);
+                    date = Math.max(date, Math.max(message.editDate, message.date));
+                }
+            }
+            long[] chunks = node.messageIds().stream().mapToLong(Long::longValue).toArray();
+            pinMessageUtils.recordAttributes(node.path(), chunks, size, date);
+            resolved.add(new NodeInfo(node.path(), false, node.messageIds(), size, date));
+        }
+        return resolved;
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+    private static long contentSize(TdApi.MessageContent content) {
+        return switch (content) {
             case TdApi.MessageDocument mDocument -> mDocument.document.document.size;
             case TdApi.MessageAudio mAudio -> mAudio.audio.audio.size;
             case TdApi.MessageVideo mVideo -> mVideo.video.video.size;
@@ -136,85 +325,186 @@ public class TgfsApplication implements AutoCloseable {
                 mAnimEmoji.animatedEmoji.sound.size + mAnimEmoji.animatedEmoji.sticker.sticker.size;
             default -> 0;
         };
-
-        return new NodeAttributes(false, size, Math.max(message.editDate, message.date),
-                                  Privileges.ALL(), Privileges.ALL(), Privileges.ALL()
-        );
     }
 
+    /**
+     * Downloads a whole file.
+     *
+     * @return lease of the local copy, which is kept until the lease is closed
+     */
     @SneakyThrows
-    public File readFile(String path) {
-        List<Long> messageIds = pinMessageUtils.listMessageIdsByPath(path);
-        if (messageIds.isEmpty()) {
-            throw new StorageFileNotFoundException("Unknown path: " + path);
-        }
-        if (messageIds.size() > 1) {
+    public DownloadCache.Lease readFile(String path) {
+        NodeInfo nodeInfo = pinMessageUtils.getInfo(path);
+        if (nodeInfo.isDirectory()) {
             throw new StorageException("Unknown file: " + path);
         }
 
-        Long msgId = messageIds.get(0);
-        var req = new TdApi.GetMessage();
-        req.chatId = chatId;
-        req.messageId = msgId;
-        var message = client.send(req).get();
-        if (message.content instanceof TdApi.MessageDocument messageDocument) {
-            var downloadRequest = new TdApi.DownloadFile();
-            downloadRequest.fileId = messageDocument.document.document.id;
-            downloadRequest.priority = 1;
-            downloadRequest.offset = 0;
-            downloadRequest.limit = 0;
-            return new File(client.send(downloadRequest).get().local.path);
+        long[] chunks = nodeInfo.messageIds().stream().mapToLong(Long::longValue).toArray();
+        return chunkTransfer.download(chunks, FileSystemTree.fileName(path));
+    }
+
+    /**
+     * Reads a window of a file without downloading the rest of it.
+     *
+     * @return the bytes of the window, shorter than {@code length} at the end of the file
+     */
+    public byte[] readFile(String path, long offset, int length) {
+        NodeInfo nodeInfo = pinMessageUtils.getInfo(path);
+        if (nodeInfo.isDirectory()) {
+            throw new StorageException("Unknown file: " + path);
         }
-        return null;
+
+        long[] chunks = nodeInfo.messageIds().stream().mapToLong(Long::longValue).toArray();
+        long[] starts = chunkTransfer.chunkStarts(chunks, pinMessageUtils.getChunkSize(), nodeInfo.size());
+        byte[] bytes = chunkTransfer.read(chunks, starts, offset, length);
+        readAhead.onRead(path, chunks, starts, offset, bytes.length);
+        return bytes;
     }
 
-    @SneakyThrows
-    public void writeFile(String path, byte[] bytes, long offset) {
-        updateFileData(path, bytes);
+    /**
+     * Size of the blocks {@link #writeFile} works with.
+     */
+    public long getChunkSize() {
+        return pinMessageUtils.getChunkSize();
     }
 
-    @SneakyThrows
-    private void initApp() {
-        System.out.println("INIT in TGFS APP");
-        TdApi.User me = client.getMeAsync().get(1, TimeUnit.MINUTES);
-        var savedMessagesChat = client.send(new TdApi.CreatePrivateChat(me.id, true)).get(1, TimeUnit.MINUTES);
-        chatId = savedMessagesChat.id;
-        System.out.println("PRIVATE CHAT: " + chatId);
+    /**
+     * Starts the upload of a block of a file that is still being written, see {@link ChunkTransfer#uploadBlock}.
+     */
+    public CompletableFuture<Long> uploadBlock(String path, FileChannel contents, int block) {
+        return chunkTransfer.uploadBlock(FileSystemTree.fileName(path), contents, block, getChunkSize());
+    }
 
-        pinMessageUtils = new PinMessageUtils(this);
+    /**
+     * Releases the chunk of a block upload that was superseded by later writes.
+     */
+    public void discardUpload(CompletableFuture<Long> upload) {
+        chunkTransfer.discardUpload(upload);
     }
 
+    /**
+     * Stores new contents of a file by re-uploading only the dirty blocks, then switches the file over to
+     * the new chunk list and releases the replaced chunks.
+     *
+     * @param contents    whole file contents
+     * @param dirtyBlocks indexes of the chunk-sized blocks changed since the file was read
+     * @param uploads     uploads of dirty blocks started while the file was written; blocks whose upload failed
+     *                    are uploaded again. The write takes them out of the map, and releases their chunks
+     *                    unless it commits them.
+     */
     @SneakyThrows
-    private long getLastMessageId() {
-        Thread.sleep(300);
-        var req = new TdApi.GetChatHistory();
-        req.chatId = chatId;
-        req.limit = 1;
-        var history = client.send(req).get();
-        return history.messages[0].id;
+    public void writeFile(
+        String path, FileChannel contents, BitSet dirtyBlocks, Map<Integer, CompletableFuture<Long>> uploads
+    ) {
+        Map<Integer, CompletableFuture<Long>> taken = new HashMap<>(uploads);
+        uploads.clear();
+
+        long chunkSize = getChunkSize();
+        long[] oldChunks;
+        int blockCount;
+        BitSet changed;
+        long[] known;
+        BitSet pending;
+        List<Long> unused = new ArrayList<>();
+        boolean uploadsTaken = false;
+        try {
+            NodeInfo oldInfo = pinMessageUtils.getInfo(path);
+            oldChunks = oldInfo.messageIds().stream().mapToLong(Long::longValue).toArray();
+            blockCount = blockCount(contents.size(), chunkSize);
+            changed = changedBlocks(oldChunks, oldInfo.size(), blockCount, chunkSize, dirtyBlocks);
+
+            known = Arrays.copyOf(oldChunks, blockCount);
+            pending = (BitSet) changed.clone();
+            for (var upload : taken.entrySet()) {
+                Long chunk = upload.getValue().exceptionally(e -> null).join();
+                if (chunk == null) {
+                    continue;
+                }
+                int block = upload.getKey();
+                if (changed.get(block)) {
+                    known[block] = chunk;
+                    pending.clear(block);
+                } else {
+                    unused.add(chunk);
+                }
+            }
+            uploadsTaken = true;
+        } finally {
+            if (!uploadsTaken) {
+                taken.values().forEach(chunkTransfer::discardUpload);
+            }
+        }
+
+        long[] chunks = null;
+        try {
+            chunks = chunkTransfer.rewrite(FileSystemTree.fileName(path), known, contents, pending, chunkSize);
+            if (!Arrays.equals(oldChunks, chunks)) {
+                pinMessageUtils.replaceChunks(path, chunks, contents.size(), now());
+                readAhead.forget(path);
+            }
+        } catch (Exception e) {
+            // A failed rewrite has already released what it uploaded itself.
+            BitSet created = chunks != null ? changed : without(changed, pending);
+            long[] source = chunks != null ? chunks : known;
+            releaseChunks(created.stream().mapToLong(block -> source[block]).toArray());
+            throw e;
+        } finally {
+            releaseChunks(unused.stream().mapToLong(Long::longValue).toArray());
+        }
+
+        // Every re-uploaded block holds a reference of its own, even when it was shared with an identical
+        // chunk, so the chunks previously at those positions are released.
+        long[] replaced = IntStream.range(0, oldChunks.length)
+                                   .filter(block -> block >= blockCount || changed.get(block))
+                                   .mapToLong(block -> oldChunks[block])
+                                   .toArray();
+        releaseChunks(replaced);
     }
 
-    @SneakyThrows
-    private void updateFileData(String path, byte[] data) {
-        var tempDirPath = Files.createTempDirectory(null);
-        var tempFile = new File(
-            Path.of(
-                tempDirPath.toString(),
-                path.substring(path.lastIndexOf("/"))
-            ).toString()
-        );
+    /**
+     * Blocks {@link #writeFile} has to upload: the dirty ones and those past the old end of the file. Files
+     * whose chunks are not all chunk-sized, like those stored as one message before files were split into
+     * chunks, are uploaded whole, since their old chunks don't line up with the blocks.
+     *
+     * @param oldSize size of the stored file, or -1 if it is unknown
+     */
+    static BitSet changedBlocks(long[] oldChunks, long oldSize, int blockCount, long chunkSize, BitSet dirtyBlocks) {
+        BitSet changed = (BitSet) dirtyBlocks.clone();
+        if (oldSize < 0 || oldChunks.length != blockCount(oldSize, chunkSize)) {
+            changed.set(0, blockCount);
+        } else {
+            changed.set(Math.min(oldChunks.length, blockCount), blockCount);
+        }
+        changed.clear(blockCount, Math.max(blockCount, changed.length()));
+        return changed;
+    }
+
+    private static int blockCount(long size, long chunkSize) {
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
 
-        tempFile.deleteOnExit();
-        tempDirPath.toFile().deleteOnExit();
+    private static BitSet without(BitSet blocks, BitSet removed) {
+        BitSet result = (BitSet) blocks.clone();
+        result.andNot(removed);
+        return result;
+    }
+
+    @SneakyThrows
+    private void initApp() {
+        log.info("Initializing filesystem in chat {}", getChatId());
 
-        Files.write(tempFile.toPath(), data);
+        chunkIndex = new ChunkIndex(config.getMetadata().getChunkIndexPath());
+        pinMessageUtils = new PinMessageUtils(this, config.getMetadata(), config.getTransfer().getChunkSize().toBytes());
+        downloadCache = new DownloadCache(
+            this, config.getTransfer().getDownloadCacheSize().toBytes(), config.getTransfer().getAssembledDirectory());
+        chunkTransfer = new ChunkTransfer(this, config.getTransfer(), downloadCache);
+        readAhead = new ReadAhead(chunkTransfer, config.getTransfer());
+    }
 
-        var req = new TdApi.EditMessageMedia();
-        var document = new TdApi.InputMessageDocument();
-        document.document = new TdApi.InputFileLocal(tempFile.getPath());
-        req.inputMessageContent = document;
-        req.chatId = chatId;
-        req.messageId = pinMessageUtils.listMessageIdsByPath(path).get(0);
-        client.send(req).get();
+    private void onMessageContent(TdApi.UpdateMessageContent update) {
+        var utils = pinMessageUtils;
+        if (utils != null) {
+            utils.onMessageContent(update);
+        }
     }
 }
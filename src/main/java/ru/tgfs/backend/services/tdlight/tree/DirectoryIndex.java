@@ -0,0 +1,175 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+/**
+ * Children of one directory: an open-addressing table from interned child name to node id.
+ * Lookups hash a region of the path string directly, so resolving a path does not allocate substrings.
+ */
+final class DirectoryIndex {
+    private static final int MIN_CAPACITY = 4;
+
+    private String[] names;
+    private int[] ids;
+    private int size;
+
+    /**
+     * Messages holding this directory's children, bucketed by name hash. Null until first written.
+     */
+    long[] shards;
+    /**
+     * False while the children are still only in the shard messages.
+     */
+    boolean loaded = true;
+
+    int parent = FileSystemTree.NOT_FOUND;
+    String name;
+
+    DirectoryIndex() {
+        names = new String[MIN_CAPACITY];
+        ids = new int[MIN_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(CharSequence path, int start, int end) {
+        int mask = names.length - 1;
+        int length = end - start;
+        for (int slot = hash(path, start, end) & mask; ; slot = (slot + 1) & mask) {
+            String name = names[slot];
+            if (name == null) {
+                return FileSystemTree.NOT_FOUND;
+            }
+            if (name.length() == length && regionEquals(name, path, start, length)) {
+                return ids[slot];
+            }
+        }
+    }
+
+    int get(String name) {
+        return get(name, 0, name.length());
+    }
+
+    boolean put(String name, int id) {
+        if ((size + 1) * 4 > names.length * 3) {
+            resize(names.length * 2);
+        }
+        int mask = names.length - 1;
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            String current = names[slot];
+            if (current == null) {
+                names[slot] = name.intern();
+                ids[slot] = id;
+                size++;
+                return true;
+            }
+            if (current.equals(name)) {
+                return false;
+            }
+        }
+    }
+
+    void clear() {
+        names = new String[MIN_CAPACITY];
+        ids = new int[MIN_CAPACITY];
+        size = 0;
+    }
+
+    int remove(String name) {
+        int mask = names.length - 1;
+        int slot = hash(name) & mask;
+        while (true) {
+            String current = names[slot];
+            if (current == null) {
+                return FileSystemTree.NOT_FOUND;
+            }
+            if (current.equals(name)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int removed = ids[slot];
+        size--;
+
+        // Backward-shift deletion keeps probe chains intact without tombstones.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; names[next] != null; next = (next + 1) & mask) {
+            int home = hash(names[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                names[gap] = names[next];
+                ids[gap] = ids[next];
+                gap = next;
+            }
+        }
+        names[gap] = null;
+        ids[gap] = 0;
+
+        if (names.length > MIN_CAPACITY && size * 8 < names.length) {
+            resize(names.length / 2);
+        }
+        return removed;
+    }
+
+    void forEach(FileSystemTree.ChildConsumer consumer) {
+        for (int slot = 0; slot < names.length; slot++) {
+            if (names[slot] != null) {
+                consumer.accept(names[slot], ids[slot]);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        String[] oldNames = names;
+        int[] oldIds = ids;
+        names = new String[Math.max(capacity, MIN_CAPACITY)];
+        ids = new int[names.length];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) {
+                continue;
+            }
+            int slot = hash(oldNames[i]) & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = oldNames[i];
+            ids[slot] = oldIds[i];
+        }
+    }
+
+    static int bucket(String name, int bucketCount) {
+        return hash(name) & (bucketCount - 1);
+    }
+
+    /**
+     * Same function as {@link String#hashCode()}, so it matches the hash cached in the stored names.
+     */
+    private static int hash(CharSequence path, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return spread(h);
+    }
+
+    private static int hash(String name) {
+        return spread(name.hashCode());
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionEquals(String name, CharSequence path, int start, int length) {
+        if (path instanceof String pathString) {
+            return pathString.regionMatches(start, name, 0, length);
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != path.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,395 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
+
+/**
+ * Inode table of the filesystem. Nodes are identified by an int id; per-node data is kept in primitive arrays
+ * indexed by that id, and directories own a {@link DirectoryIndex} of their children. Node {@link #ROOT} is
+ * always the root directory.
+ * <p>
+ * Directories may be created unloaded, knowing only the shard messages their children live in. The first
+ * access to such a directory's children goes through the {@link DirectoryLoader}.
+ */
+@JsonSerialize(using = FileSystemTreeSerializer.class)
+@JsonDeserialize(using = FileSystemTreeDeserializer.class)
+public final class FileSystemTree {
+    public static final int ROOT = 0;
+    public static final int NOT_FOUND = -1;
+    public static final long UNKNOWN_SIZE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] messageIds = new long[INITIAL_CAPACITY];
+    /**
+     * Message ids of files split into several chunks; null for single-message files and directories.
+     */
+    private long[][] chunkLists = new long[INITIAL_CAPACITY][];
+    /**
+     * File size in bytes, or {@link #UNKNOWN_SIZE} for files stored before sizes were recorded.
+     */
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    /**
+     * Last modification of a file, in seconds since the epoch like Telegram message dates.
+     */
+    private int[] modificationTimes = new int[INITIAL_CAPACITY];
+    private DirectoryIndex[] directories = new DirectoryIndex[INITIAL_CAPACITY];
+
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    private int nodeCount;
+
+    private DirectoryLoader loader;
+
+    public FileSystemTree() {
+        allocate();
+        directories[ROOT] = new DirectoryIndex();
+    }
+
+    public void setLoader(DirectoryLoader loader) {
+        this.loader = loader;
+    }
+
+    public int size() {
+        return nodeCount;
+    }
+
+    public boolean isDirectory(int id) {
+        return directories[id] != null;
+    }
+
+    /**
+     * @return message id of the first chunk of a file
+     */
+    public long messageId(int id) {
+        return messageIds[id];
+    }
+
+    public int chunkCount(int id) {
+        return chunkLists[id] == null ? 1 : chunkLists[id].length;
+    }
+
+    public long chunk(int id, int index) {
+        return chunkLists[id] == null ? messageIds[id] : chunkLists[id][index];
+    }
+
+    public long[] chunks(int id) {
+        return chunkLists[id] == null ? new long[] {messageIds[id]} : chunkLists[id].clone();
+    }
+
+    public void setChunks(int id, long[] chunks) {
+        messageIds[id] = chunks[0];
+        chunkLists[id] = chunks.length == 1 ? null : chunks.clone();
+    }
+
+    public long fileSize(int id) {
+        return sizes[id];
+    }
+
+    public int modificationTime(int id) {
+        return modificationTimes[id];
+    }
+
+    public void setAttributes(int id, long size, int modificationTime) {
+        sizes[id] = size;
+        modificationTimes[id] = modificationTime;
+    }
+
+    /**
+     * Resolves a slash separated path. Empty segments are skipped, so "/", "" and "//" all name the root.
+     *
+     * @return node id, or {@link #NOT_FOUND} if some segment is missing or is not a directory
+     */
+    public int lookup(CharSequence path) {
+        int current = ROOT;
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = segmentEnd(path, start);
+            if (end > start) {
+                if (directories[current] == null) {
+                    return NOT_FOUND;
+                }
+                current = directory(current).get(path, start, end);
+                if (current == NOT_FOUND) {
+                    return NOT_FOUND;
+                }
+            }
+            start = end + 1;
+        }
+        return current;
+    }
+
+    /**
+     * Resolves the directory that holds the last segment of the path.
+     *
+     * @throws StorageFileNotFoundException if an intermediate segment is missing or is not a directory
+     */
+    public int lookupParent(CharSequence path) {
+        int lastStart = lastSegmentStart(path);
+        int current = ROOT;
+        int start = 0;
+        while (start < lastStart) {
+            int end = segmentEnd(path, start);
+            if (end > start) {
+                int next = directory(current).get(path, start, end);
+                if (next == NOT_FOUND) {
+                    throw new StorageFileNotFoundException("No such path while traversing: " + path);
+                }
+                if (directories[next] == null) {
+                    throw new StorageFileNotFoundException(
+                        "No such directory while traversing: " + path.subSequence(start, end));
+                }
+                current = next;
+            }
+            start = end + 1;
+        }
+        return current;
+    }
+
+    /**
+     * @return the last non-empty segment of the path, or an empty string for the root
+     */
+    public static String fileName(String path) {
+        int start = lastSegmentStart(path);
+        if (start == path.length()) {
+            return "";
+        }
+        return path.substring(start, segmentEnd(path, start));
+    }
+
+    public int child(int directoryId, String name) {
+        return directory(directoryId).get(name);
+    }
+
+    public List<String> childNames(int directoryId) {
+        DirectoryIndex directory = directory(directoryId);
+        List<String> names = new ArrayList<>(directory.size());
+        directory.forEach((name, id) -> names.add(name));
+        return names;
+    }
+
+    public void forEachChild(int directoryId, ChildConsumer consumer) {
+        directory(directoryId).forEach(consumer);
+    }
+
+    public int childCount(int directoryId) {
+        return directory(directoryId).size();
+    }
+
+    public int createFile(long messageId) {
+        int id = allocate();
+        messageIds[id] = messageId;
+        sizes[id] = UNKNOWN_SIZE;
+        return id;
+    }
+
+    public int createFile(long[] chunks) {
+        int id = allocate();
+        setChunks(id, chunks);
+        sizes[id] = UNKNOWN_SIZE;
+        return id;
+    }
+
+    public int createFile(long[] chunks, long size, int modificationTime) {
+        int id = createFile(chunks);
+        setAttributes(id, size, modificationTime);
+        return id;
+    }
+
+    public int createDirectory() {
+        int id = allocate();
+        directories[id] = new DirectoryIndex();
+        return id;
+    }
+
+    /**
+     * Creates a directory whose children are not read yet and will be loaded from the given shards on demand.
+     */
+    public int createDirectory(long[] shards) {
+        int id = createDirectory();
+        directories[id].shards = shards;
+        directories[id].loaded = false;
+        return id;
+    }
+
+    public long[] shards(int directoryId) {
+        return directories[directoryId].shards;
+    }
+
+    public void setShards(int directoryId, long[] shards) {
+        directories[directoryId].shards = shards;
+    }
+
+    /**
+     * @return directory holding this directory, or {@link #NOT_FOUND} for the root and detached nodes
+     */
+    public int parent(int directoryId) {
+        return directories[directoryId].parent;
+    }
+
+    public String name(int directoryId) {
+        return directories[directoryId].name;
+    }
+
+    public boolean isLoaded(int directoryId) {
+        return directories[directoryId].loaded;
+    }
+
+    /**
+     * Forgets the children of a directory, so they are read from its shards again on next access.
+     */
+    public void unload(int directoryId) {
+        DirectoryIndex directory = directories[directoryId];
+        directory.forEach((name, childId) -> release(childId));
+        directory.clear();
+        directory.loaded = directory.shards == null;
+    }
+
+    public static int bucket(String name, int bucketCount) {
+        return DirectoryIndex.bucket(name, bucketCount);
+    }
+
+    /**
+     * @return false if the directory already has a child with this name
+     */
+    public boolean link(int directoryId, String name, int id) {
+        if (!directory(directoryId).put(name, id)) {
+            return false;
+        }
+        DirectoryIndex linked = directories[id];
+        if (linked != null) {
+            linked.parent = directoryId;
+            linked.name = name;
+        }
+        return true;
+    }
+
+    /**
+     * Detaches a child from its directory without releasing it, so it can be linked elsewhere.
+     *
+     * @return id of the detached node, or {@link #NOT_FOUND}
+     */
+    public int unlink(int directoryId, String name) {
+        int id = directory(directoryId).remove(name);
+        if (id != NOT_FOUND && directories[id] != null) {
+            directories[id].parent = NOT_FOUND;
+            directories[id].name = null;
+        }
+        return id;
+    }
+
+    /**
+     * Releases a detached node together with its whole subtree.
+     */
+    public void release(int id) {
+        DirectoryIndex directory = directories[id];
+        if (directory != null) {
+            directory.forEach((name, childId) -> release(childId));
+        }
+        messageIds[id] = 0;
+        chunkLists[id] = null;
+        sizes[id] = 0;
+        modificationTimes[id] = 0;
+        directories[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        nodeCount--;
+    }
+
+    public void collectMessageIds(int id, LongConsumer consumer) {
+        if (directories[id] == null) {
+            for (int i = 0; i < chunkCount(id); i++) {
+                consumer.accept(chunk(id, i));
+            }
+            return;
+        }
+        directory(id).forEach((name, childId) -> collectMessageIds(childId, consumer));
+    }
+
+    private DirectoryIndex directory(int id) {
+        DirectoryIndex directory = directories[id];
+        if (!directory.loaded) {
+            loader.beforeLoad(id);
+            // Marked first, so children linked by the loader do not recurse into loading again.
+            directory.loaded = true;
+            try {
+                loader.load(this, id);
+            } catch (RuntimeException e) {
+                directory.forEach((name, childId) -> release(childId));
+                directory.clear();
+                directory.loaded = false;
+                throw e;
+            }
+        }
+        return directory;
+    }
+
+    private int allocate() {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == messageIds.length) {
+                int capacity = messageIds.length * 2;
+                messageIds = Arrays.copyOf(messageIds, capacity);
+                chunkLists = Arrays.copyOf(chunkLists, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                modificationTimes = Arrays.copyOf(modificationTimes, capacity);
+                directories = Arrays.copyOf(directories, capacity);
+            }
+        }
+        nodeCount++;
+        return id;
+    }
+
+    @FunctionalInterface
+    public interface ChildConsumer {
+        void accept(String name, int id);
+    }
+
+    public interface DirectoryLoader {
+        void load(FileSystemTree tree, int directoryId);
+
+        /**
+         * Called before the tree is modified to load a directory; may throw to abort the access instead.
+         */
+        default void beforeLoad(int directoryId) {
+        }
+    }
+
+    private static int segmentEnd(CharSequence path, int start) {
+        int end = start;
+        while (end < path.length() && path.charAt(end) != '/') {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @return start index of the last non-empty segment, or the path length if there is none
+     */
+    private static int lastSegmentStart(CharSequence path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (end == 0) {
+            return path.length();
+        }
+        int start = end;
+        while (start > 0 && path.charAt(start - 1) != '/') {
+            start--;
+        }
+        return start;
+    }
+}
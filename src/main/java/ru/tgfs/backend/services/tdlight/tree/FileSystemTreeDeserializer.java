@@ -0,0 +1,63 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the pinned-message format written by {@link FileSystemTreeSerializer} straight into the inode table,
+ * without building an intermediate map.
+ */
+public class FileSystemTreeDeserializer extends StdDeserializer<FileSystemTree> {
+    public FileSystemTreeDeserializer() {
+        super(FileSystemTree.class);
+    }
+
+    @Override
+    public FileSystemTree deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+        if (!parser.isExpectedStartObjectToken()) {
+            return (FileSystemTree) context.handleUnexpectedToken(FileSystemTree.class, parser);
+        }
+        FileSystemTree tree = new FileSystemTree();
+        readDirectory(tree, FileSystemTree.ROOT, parser, context);
+        return tree;
+    }
+
+    private static void readDirectory(
+        FileSystemTree tree, int directoryId, JsonParser parser, DeserializationContext context
+    ) throws IOException {
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            JsonToken token = parser.nextToken();
+            int childId;
+            if (token == JsonToken.START_OBJECT) {
+                childId = tree.createDirectory();
+                readDirectory(tree, childId, parser, context);
+            } else if (token == JsonToken.VALUE_NUMBER_INT) {
+                childId = tree.createFile(parser.getLongValue());
+            } else if (token == JsonToken.START_ARRAY) {
+                childId = tree.createFile(readLongArray(parser));
+            } else {
+                context.handleUnexpectedToken(FileSystemTree.class, parser);
+                parser.skipChildren();
+                continue;
+            }
+            tree.link(directoryId, name, childId);
+        }
+    }
+
+    static long[] readLongArray(JsonParser parser) throws IOException {
+        long[] values = new long[4];
+        int count = 0;
+        while (parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = parser.getLongValue();
+        }
+        return Arrays.copyOf(values, count);
+    }
+}
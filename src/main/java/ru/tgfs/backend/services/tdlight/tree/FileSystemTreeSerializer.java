@@ -0,0 +1,54 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes the tree in the pinned-message format: a directory is a JSON object of its children,
+ * a file is its message id, or an array of message ids if it is split into chunks.
+ */
+public class FileSystemTreeSerializer extends StdSerializer<FileSystemTree> {
+    public FileSystemTreeSerializer() {
+        super(FileSystemTree.class);
+    }
+
+    @Override
+    public void serialize(FileSystemTree tree, JsonGenerator generator, SerializerProvider provider)
+        throws IOException {
+        writeNode(tree, FileSystemTree.ROOT, generator);
+    }
+
+    private static void writeNode(FileSystemTree tree, int id, JsonGenerator generator) throws IOException {
+        if (!tree.isDirectory(id)) {
+            writeFile(tree, id, generator);
+            return;
+        }
+
+        generator.writeStartObject();
+        try {
+            tree.forEachChild(id, (name, childId) -> {
+                try {
+                    generator.writeFieldName(name);
+                    writeNode(tree, childId, generator);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.writeEndObject();
+    }
+
+    static void writeFile(FileSystemTree tree, int id, JsonGenerator generator) throws IOException {
+        if (tree.chunkCount(id) == 1) {
+            generator.writeNumber(tree.messageId(id));
+            return;
+        }
+        long[] chunks = tree.chunks(id);
+        generator.writeArray(chunks, 0, chunks.length);
+    }
+}
@@ -0,0 +1,154 @@
+package ru.tgfs.backend.services.tdlight.tree;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import ru.tgfs.backend.exceptions.StorageException;
+
+/**
+ * Text of a single shard message: the children of one directory that hash into one bucket.
+ * A file is written as {@code {"c": [chunk message ids], "s": size, "t": modification time}}, a subdirectory as
+ * {@code {"d": [shard message ids]}}. Files stored before sizes were recorded are a bare message id or an array
+ * of chunk ids.
+ */
+public final class ShardCodec {
+    private static final String SHARDS_FIELD = "d";
+    private static final String CHUNKS_FIELD = "c";
+    private static final String SIZE_FIELD = "s";
+    private static final String MODIFICATION_TIME_FIELD = "t";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private ShardCodec() {
+    }
+
+    /**
+     * Serializes the requested buckets of a directory in a single pass over its children.
+     */
+    public static Map<Integer, String> writeBuckets(FileSystemTree tree, int directoryId, BitSet buckets) {
+        int bucketCount = tree.shards(directoryId).length;
+        Map<Integer, StringWriter> writers = new HashMap<>();
+        Map<Integer, JsonGenerator> generators = new HashMap<>();
+        try {
+            for (int bucket = buckets.nextSetBit(0); bucket >= 0; bucket = buckets.nextSetBit(bucket + 1)) {
+                StringWriter writer = new StringWriter();
+                JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+                generator.writeStartObject();
+                writers.put(bucket, writer);
+                generators.put(bucket, generator);
+            }
+
+            tree.forEachChild(directoryId, (name, childId) -> {
+                JsonGenerator generator = generators.get(FileSystemTree.bucket(name, bucketCount));
+                if (generator == null) {
+                    return;
+                }
+                try {
+                    generator.writeFieldName(name);
+                    writeEntry(tree, childId, generator);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            Map<Integer, String> texts = new HashMap<>();
+            for (var entry : generators.entrySet()) {
+                entry.getValue().writeEndObject();
+                entry.getValue().close();
+                texts.put(entry.getKey(), writers.get(entry.getKey()).toString());
+            }
+            return texts;
+        } catch (IOException e) {
+            throw new StorageException("Could not serialize directory shard", e);
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Could not serialize directory shard", e.getCause());
+        }
+    }
+
+    /**
+     * Links the entries of one shard message into the directory.
+     */
+    public static void readBucket(FileSystemTree tree, int directoryId, String text) {
+        if (text.isBlank()) {
+            return;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(text)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new StorageException("Malformed directory shard: " + text);
+            }
+            String name;
+            while ((name = parser.nextFieldName()) != null) {
+                tree.link(directoryId, name, readEntry(tree, parser));
+            }
+        } catch (IOException e) {
+            throw new StorageException("Malformed directory shard: " + text, e);
+        }
+    }
+
+    private static void writeEntry(FileSystemTree tree, int id, JsonGenerator generator) throws IOException {
+        if (!tree.isDirectory(id)) {
+            if (tree.fileSize(id) == FileSystemTree.UNKNOWN_SIZE) {
+                FileSystemTreeSerializer.writeFile(tree, id, generator);
+                return;
+            }
+            long[] chunks = tree.chunks(id);
+            generator.writeStartObject();
+            generator.writeFieldName(CHUNKS_FIELD);
+            generator.writeArray(chunks, 0, chunks.length);
+            generator.writeNumberField(SIZE_FIELD, tree.fileSize(id));
+            generator.writeNumberField(MODIFICATION_TIME_FIELD, tree.modificationTime(id));
+            generator.writeEndObject();
+            return;
+        }
+
+        long[] shards = tree.shards(id);
+        generator.writeStartObject();
+        generator.writeFieldName(SHARDS_FIELD);
+        generator.writeArray(shards == null ? new long[0] : shards, 0, shards == null ? 0 : shards.length);
+        generator.writeEndObject();
+    }
+
+    private static int readEntry(FileSystemTree tree, JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return tree.createFile(parser.getLongValue());
+        }
+        if (token == JsonToken.START_ARRAY) {
+            return tree.createFile(FileSystemTreeDeserializer.readLongArray(parser));
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new StorageException("Unexpected token in directory shard: " + token);
+        }
+
+        long[] shards = new long[0];
+        long[] chunks = null;
+        long size = FileSystemTree.UNKNOWN_SIZE;
+        int modificationTime = 0;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            if (SHARDS_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                shards = FileSystemTreeDeserializer.readLongArray(parser);
+            } else if (CHUNKS_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                chunks = FileSystemTreeDeserializer.readLongArray(parser);
+            } else if (SIZE_FIELD.equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                size = parser.getLongValue();
+            } else if (MODIFICATION_TIME_FIELD.equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                modificationTime = parser.getIntValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (chunks != null) {
+            return tree.createFile(chunks, size, modificationTime);
+        }
+        return shards.length == 0 ? tree.createDirectory() : tree.createDirectory(shards);
+    }
+}
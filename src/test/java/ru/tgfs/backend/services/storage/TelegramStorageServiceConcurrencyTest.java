@@ -0,0 +1,239 @@
+package ru.tgfs.backend.services.storage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.tgfs.backend.configurations.TelegramConfig;
+import ru.tgfs.backend.exceptions.StorageFileNotFoundException;
+import ru.tgfs.backend.services.tdlight.DownloadCache;
+import ru.tgfs.backend.services.tdlight.TdlightInitializer;
+import ru.tgfs.backend.services.tdlight.TgfsApplication;
+
+/**
+ * Many clients opening, writing and releasing the same files at once. Every client writes a region of its own,
+ * so each of them has to find its bytes in the contents that finally reach Telegram. Files renamed or deleted
+ * right after their release have to end up with those contents, or gone.
+ */
+class TelegramStorageServiceConcurrencyTest {
+    private static final long BLOCK_SIZE = 4096;
+    private static final int CLIENTS = 8;
+    private static final int ROUNDS = 50;
+    private static final int REGION = 1000;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Contents written to Telegram by path.
+     */
+    private final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+    private TelegramStorageService service;
+    private ExecutorService clients;
+
+    @BeforeEach
+    void setUp() {
+        TelegramConfig config = new TelegramConfig();
+        config.getOutbox().setDirectory(directory.resolve("outbox"));
+
+        TgfsApplication app = mock(TgfsApplication.class);
+        when(app.getConfig()).thenReturn(config);
+        when(app.getChunkSize()).thenReturn(BLOCK_SIZE);
+        when(app.uploadBlock(anyString(), any(), anyInt())).thenReturn(CompletableFuture.completedFuture(0L));
+        when(app.readFile(anyString())).thenAnswer(invocation -> storedCopy(invocation.getArgument(0)));
+        doAnswer(invocation -> {
+            // Uploads take a while, so that renames and deletes find them still running.
+            Thread.sleep(1);
+            stored.put(invocation.getArgument(0), readAll(invocation.getArgument(1)));
+            return null;
+        }).when(app).writeFile(anyString(), any(), any(), anyMap());
+        doAnswer(invocation -> {
+            byte[] contents = stored.remove(invocation.getArgument(0));
+            if (contents == null) {
+                throw new StorageFileNotFoundException("Path not found: " + invocation.getArgument(0));
+            }
+            stored.put(invocation.getArgument(1), contents);
+            return null;
+        }).when(app).rename(anyString(), anyString());
+        doAnswer(invocation -> {
+            if (stored.remove(invocation.getArgument(0)) == null) {
+                throw new StorageFileNotFoundException("Path not found: " + invocation.getArgument(0));
+            }
+            return null;
+        }).when(app).deletePath(anyString());
+
+        TdlightInitializer initializer = mock(TdlightInitializer.class);
+        when(initializer.init()).thenReturn(app);
+        service = new TelegramStorageService(initializer, new SimpleMeterRegistry());
+        service.init();
+        clients = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        clients.shutdownNow();
+        service.destroy();
+    }
+
+    @Test
+    void handlesOfOneFileLoseNoWrites() throws Exception {
+        runClients(client -> {
+            for (int round = 0; round < ROUNDS; round++) {
+                writeRegion("/shared.bin", client);
+            }
+        });
+
+        assertRegions("/shared.bin");
+    }
+
+    @Test
+    void handlesOfManyFilesLoseNoWrites() throws Exception {
+        int files = ROUNDS / 5;
+        runClients(client -> {
+            for (int round = 0; round < ROUNDS; round++) {
+                writeRegion("/file-" + (client + round) % files + ".bin", client);
+            }
+        });
+
+        for (int file = 0; file < files; file++) {
+            assertRegions("/file-" + file + ".bin");
+        }
+    }
+
+    @Test
+    void renamesAndDeletesRightAfterReleaseLoseNoWrites() throws Exception {
+        int files = ROUNDS / 5;
+        BlockingQueue<String> released = new LinkedBlockingQueue<>();
+        ExecutorService mover = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> moved = mover.submit((Callable<Void>) () -> {
+                for (int i = 0; i < CLIENTS * files; i++) {
+                    String path = released.take();
+                    if (path.startsWith("/moved-")) {
+                        service.rename(path, renamed(path));
+                    } else {
+                        service.deleteFile(path);
+                    }
+                }
+                return null;
+            });
+            runClients(client -> {
+                for (int file = 0; file < files; file++) {
+                    String path = (file % 2 == 0 ? "/moved-" : "/deleted-") + client + "-" + file + ".bin";
+                    writeRegion(path, client);
+                    released.put(path);
+                }
+            });
+            moved.get();
+        } finally {
+            mover.shutdownNow();
+        }
+
+        for (int client = 0; client < CLIENTS; client++) {
+            for (int file = 0; file < files; file++) {
+                String path = (file % 2 == 0 ? "/moved-" : "/deleted-") + client + "-" + file + ".bin";
+                assertThat(stored).doesNotContainKey(path);
+                if (file % 2 == 0) {
+                    byte[] contents = service.loadFileAsResource(renamed(path)).getContentAsByteArray();
+                    assertThat(Arrays.copyOfRange(contents, client * REGION, (client + 1) * REGION))
+                        .as("region of client %d in %s", client, renamed(path))
+                        .isEqualTo(region(client));
+                }
+            }
+        }
+    }
+
+    private static String renamed(String path) {
+        return path.replace("/moved-", "/renamed-");
+    }
+
+    private void writeRegion(String path, int client) {
+        service.openFile(path);
+        try {
+            service.updateFile(path, ByteBuffer.wrap(region(client)), (long) client * REGION);
+        } finally {
+            service.releaseFile(path);
+        }
+    }
+
+    private void runClients(ClientTask task) throws Exception {
+        List<Future<Void>> results = new ArrayList<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            int id = client;
+            results.add(clients.submit((Callable<Void>) () -> {
+                task.run(id);
+                return null;
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+    private void assertRegions(String path) throws IOException {
+        byte[] contents = service.loadFileAsResource(path).getContentAsByteArray();
+
+        assertThat(contents).hasSize(CLIENTS * REGION);
+        for (int client = 0; client < CLIENTS; client++) {
+            assertThat(Arrays.copyOfRange(contents, client * REGION, (client + 1) * REGION))
+                .as("region of client %d in %s", client, path)
+                .isEqualTo(region(client));
+        }
+    }
+
+    private DownloadCache.Lease storedCopy(String path) throws IOException {
+        Path copy = Files.createTempFile(directory, "stored", null);
+        Files.write(copy, stored.getOrDefault(path, new byte[0]));
+        DownloadCache.Lease lease = mock(DownloadCache.Lease.class);
+        when(lease.path()).thenReturn(copy);
+        return lease;
+    }
+
+    private static byte[] readAll(FileChannel contents) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) contents.size());
+        while (bytes.hasRemaining()) {
+            if (contents.read(bytes, bytes.position()) < 0) {
+                break;
+            }
+        }
+        return bytes.array();
+    }
+
+    private static byte[] region(int client) {
+        byte[] bytes = new byte[REGION];
+        Arrays.fill(bytes, (byte) (client + 1));
+        return bytes;
+    }
+
+    @FunctionalInterface
+    private interface ClientTask {
+        void run(int client) throws Exception;
+    }
+}
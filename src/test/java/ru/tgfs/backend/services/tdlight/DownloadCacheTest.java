@@ -0,0 +1,91 @@
+package ru.tgfs.backend.services.tdlight;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Eviction of assembled files that are still being read.
+ */
+class DownloadCacheTest {
+    private static final int FILE_SIZE = 100;
+
+    @TempDir
+    Path directory;
+
+    private DownloadCache cache;
+
+    @BeforeEach
+    void setUp() {
+        TgfsApplication app = mock(TgfsApplication.class);
+        when(app.getMeterRegistry()).thenReturn(new SimpleMeterRegistry());
+        cache = new DownloadCache(app, 2 * FILE_SIZE, directory.resolve("assembled"));
+    }
+
+    @Test
+    void leasedFileIsNotEvicted() throws IOException {
+        DownloadCache.Lease first = cache.acquireAssembled(file("first"), new long[] {1, 2});
+        Path second = file("second");
+        cache.acquireAssembled(second, new long[] {3, 4}).close();
+        cache.acquireAssembled(file("third"), new long[] {5, 6}).close();
+
+        assertThat(first.path()).exists();
+        assertThat(second).doesNotExist();
+
+        first.close();
+        cache.acquireAssembled(file("fourth"), new long[] {7, 8}).close();
+
+        assertThat(first.path()).doesNotExist();
+        assertThat(cache.getSize()).isEqualTo(2 * FILE_SIZE);
+    }
+
+    @Test
+    void budgetIsRestoredWhenLeaseIsClosed() throws IOException {
+        DownloadCache.Lease first = cache.acquireAssembled(file("first"), new long[] {1, 2});
+        DownloadCache.Lease second = cache.acquireAssembled(file("second"), new long[] {3, 4});
+        DownloadCache.Lease third = cache.acquireAssembled(file("third"), new long[] {5, 6});
+
+        assertThat(cache.getSize()).isEqualTo(3 * FILE_SIZE);
+
+        first.close();
+
+        assertThat(first.path()).doesNotExist();
+        assertThat(second.path()).exists();
+        assertThat(third.path()).exists();
+        assertThat(cache.getSize()).isEqualTo(2 * FILE_SIZE);
+        second.close();
+        third.close();
+    }
+
+    @Test
+    void invalidatedFileIsDeletedWhenLeaseIsClosed() throws IOException {
+        DownloadCache.Lease lease = cache.acquireAssembled(file("first"), new long[] {1, 2});
+
+        cache.invalidate(new long[] {2});
+
+        assertThat(lease.path()).exists();
+        assertThat(cache.touchAssembled(lease.path(), new long[] {1, 2})).isNull();
+
+        lease.close();
+
+        assertThat(lease.path()).doesNotExist();
+    }
+
+    /**
+     * @return an assembled file in a directory of its own, as {@link ChunkTransfer} lays them out
+     */
+    private Path file(String name) throws IOException {
+        Path file = directory.resolve(name).resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[FILE_SIZE]);
+        return file;
+    }
+}
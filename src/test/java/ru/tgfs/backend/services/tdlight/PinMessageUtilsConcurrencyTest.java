@@ -0,0 +1,224 @@
+package ru.tgfs.backend.services.tdlight;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.tdlight.jni.TdApi;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru.tgfs.backend.configurations.TelegramConfig;
+import ru.tgfs.backend.models.NodeInfo;
+
+/**
+ * Many clients adding, moving and deleting entries of the metadata tree at once, while directories are split
+ * into more shards and written in the background. Every entry has to be found afterwards, both in memory and
+ * after reading the tree back from the chat.
+ */
+class PinMessageUtilsConcurrencyTest {
+    private static final long CHAT_ID = 1;
+    private static final long CHUNK_SIZE = 1 << 20;
+    private static final int CLIENTS = 8;
+    private static final int FILES_PER_CLIENT = 200;
+
+    @TempDir
+    Path directory;
+
+    private final Chat chat = new Chat();
+    private final TelegramConfig.Metadata config = new TelegramConfig.Metadata();
+    private TgfsApplication app;
+    private ExecutorService clients;
+
+    @BeforeEach
+    void setUp() {
+        app = mock(TgfsApplication.class);
+        when(app.getChatId()).thenReturn(CHAT_ID);
+        when(app.getMeterRegistry()).thenReturn(new SimpleMeterRegistry());
+        when(app.call(any())).thenAnswer(invocation -> chat.call(invocation.getArgument(0)));
+        when(app.sendMessage(any())).thenAnswer(invocation -> chat.send(invocation.getArgument(0)));
+
+        config.setJournalPath(directory.resolve("metadata.journal"));
+        config.setFlushInterval(Duration.ofMillis(10));
+        config.setFlushThreshold(50);
+        config.setShardSizeLimit(2000);
+        clients = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        clients.shutdownNow();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void parallelMutationsLoseNoEntries(boolean writeBehind) throws Exception {
+        config.setWriteBehind(writeBehind);
+        PinMessageUtils utils = new PinMessageUtils(app, config, CHUNK_SIZE);
+        for (int client = 0; client < CLIENTS; client++) {
+            utils.addDirectory(directoryOf(client));
+        }
+
+        List<Future<Void>> results = new ArrayList<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            int id = client;
+            results.add(clients.submit((Callable<Void>) () -> {
+                mutate(utils, id);
+                return null;
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+
+        Map<String, Long> expected = expectedFiles();
+        assertFiles(utils, expected);
+        utils.close();
+
+        PinMessageUtils reloaded = new PinMessageUtils(app, config, CHUNK_SIZE);
+        try {
+            assertFiles(reloaded, expected);
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    /**
+     * Adds files to the directory of the client, moves every tenth of them to the next client's directory and
+     * deletes every seventh of the rest, reading the neighbouring directory in between.
+     */
+    private static void mutate(PinMessageUtils utils, int client) {
+        String neighbour = directoryOf((client + 1) % CLIENTS);
+        for (int i = 0; i < FILES_PER_CLIENT; i++) {
+            String path = directoryOf(client) + "/" + fileName(client, i);
+            utils.addFile(path, new long[] {chunk(client, i)}, i, i);
+            if (i % 10 == 0) {
+                utils.movePath(path, neighbour + "/moved-" + fileName(client, i));
+            } else if (i % 7 == 0) {
+                utils.deletePath(path);
+            }
+            utils.listInfosByPath(neighbour);
+        }
+    }
+
+    /**
+     * @return chunk of every file that has to remain, by path
+     */
+    private static Map<String, Long> expectedFiles() {
+        Map<String, Long> files = new HashMap<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            for (int i = 0; i < FILES_PER_CLIENT; i++) {
+                if (i % 10 == 0) {
+                    files.put(directoryOf((client + 1) % CLIENTS) + "/moved-" + fileName(client, i), chunk(client, i));
+                } else if (i % 7 != 0) {
+                    files.put(directoryOf(client) + "/" + fileName(client, i), chunk(client, i));
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void assertFiles(PinMessageUtils utils, Map<String, Long> expected) {
+        Set<String> found = new HashSet<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            for (NodeInfo info : utils.listInfosByPath(directoryOf(client))) {
+                found.add(info.path());
+                assertThat(info.messageIds()).as(info.path()).containsExactly(expected.get(info.path()));
+            }
+        }
+        assertThat(found).containsExactlyInAnyOrderElementsOf(expected.keySet());
+    }
+
+    private static String directoryOf(int client) {
+        return "/client-" + client;
+    }
+
+    private static String fileName(int client, int index) {
+        return "file-" + client + "-" + index;
+    }
+
+    private static long chunk(int client, int index) {
+        return ((long) client * FILES_PER_CLIENT + index + 1) << 20;
+    }
+
+    /**
+     * Storage chat holding plain text messages, with the first one pinned.
+     */
+    private static final class Chat {
+        private final Map<Long, String> texts = new ConcurrentHashMap<>();
+        private final AtomicLong nextId = new AtomicLong(1);
+        private final long pinned = post("{}");
+
+        TdApi.Message send(TdApi.SendMessage request) {
+            return message(post(text(request.inputMessageContent)));
+        }
+
+        TdApi.Object call(TdApi.Function<?> function) {
+            return switch (function) {
+                case TdApi.GetChatPinnedMessage ignored -> message(pinned);
+                case TdApi.GetMessage request -> message(request.messageId);
+                case TdApi.GetMessages request -> {
+                    var messages = new TdApi.Messages();
+                    messages.messages = new TdApi.Message[request.messageIds.length];
+                    for (int i = 0; i < request.messageIds.length; i++) {
+                        messages.messages[i] = message(request.messageIds[i]);
+                    }
+                    yield messages;
+                }
+                case TdApi.EditMessageText request -> {
+                    texts.put(request.messageId, text(request.inputMessageContent));
+                    yield message(request.messageId);
+                }
+                case TdApi.DeleteMessages request -> {
+                    for (long id : request.messageIds) {
+                        texts.remove(id);
+                    }
+                    yield new TdApi.Ok();
+                }
+                default -> throw new UnsupportedOperationException(function.getClass().getSimpleName());
+            };
+        }
+
+        private long post(String text) {
+            long id = nextId.getAndIncrement() << 20;
+            texts.put(id, text);
+            return id;
+        }
+
+        private TdApi.Message message(long id) {
+            String text = texts.get(id);
+            if (text == null) {
+                return null;
+            }
+            var content = new TdApi.MessageText();
+            content.text = new TdApi.FormattedText(text, new TdApi.TextEntity[0]);
+            var message = new TdApi.Message();
+            message.id = id;
+            message.chatId = CHAT_ID;
+            message.content = content;
+            return message;
+        }
+
+        private static String text(TdApi.InputMessageContent content) {
+            return ((TdApi.InputMessageText) content).text.text;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.tgfs.backend.services.tdlight;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.BitSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Choice of the blocks a write of an open file uploads again.
+ */
+class TgfsApplicationTest {
+    private static final long CHUNK_SIZE = 1 << 20;
+
+    @Test
+    void writeInsideChunkedFileUploadsOnlyDirtyBlock() {
+        BitSet changed = TgfsApplication.changedBlocks(
+            new long[] {1, 2, 3}, 3 * CHUNK_SIZE, 3, CHUNK_SIZE, blocks(1));
+
+        assertThat(changed).isEqualTo(blocks(1));
+    }
+
+    @Test
+    void growingFileUploadsNewBlocks() {
+        BitSet changed = TgfsApplication.changedBlocks(
+            new long[] {1, 2}, 2 * CHUNK_SIZE - 10, 4, CHUNK_SIZE, blocks(1));
+
+        assertThat(changed).isEqualTo(blocks(1, 2, 3));
+    }
+
+    @Test
+    void shrinkingFileKeepsNoBlocksPastItsEnd() {
+        BitSet changed = TgfsApplication.changedBlocks(
+            new long[] {1, 2, 3}, 3 * CHUNK_SIZE, 1, CHUNK_SIZE, blocks(2));
+
+        assertThat(changed).isEqualTo(blocks());
+    }
+
+    @Test
+    void writeInsideSingleMessageFileUploadsWholeFile() {
+        // Stored as one message before files were split into chunks, so block 1 is not a chunk of its own.
+        BitSet changed = TgfsApplication.changedBlocks(
+            new long[] {1}, 3 * CHUNK_SIZE - 10, 3, CHUNK_SIZE, blocks(1));
+
+        assertThat(changed).isEqualTo(blocks(0, 1, 2));
+    }
+
+    @Test
+    void writeInsideFileOfUnknownSizeUploadsWholeFile() {
+        BitSet changed = TgfsApplication.changedBlocks(new long[] {1}, -1, 2, CHUNK_SIZE, blocks(1));
+
+        assertThat(changed).isEqualTo(blocks(0, 1));
+    }
+
+    private static BitSet blocks(int... indexes) {
+        BitSet blocks = new BitSet();
+        for (int index : indexes) {
+            blocks.set(index);
+        }
+        return blocks;
+    }
+}